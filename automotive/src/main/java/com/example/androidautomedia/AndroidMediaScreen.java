@@ -1,100 +1,411 @@
 package com.example.androidautomedia;
 
 import android.content.ComponentName;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
 
+import androidx.activity.OnBackPressedCallback;
 import androidx.annotation.NonNull;
 import androidx.car.app.CarContext;
+import androidx.car.app.constraints.ConstraintManager;
 import androidx.car.app.Screen;
 import androidx.car.app.model.Action;
-import androidx.car.app.model.Pane;
-import androidx.car.app.model.PaneTemplate;
+import androidx.car.app.model.ItemList;
+import androidx.car.app.model.ListTemplate;
 import androidx.car.app.model.Row;
 import androidx.car.app.model.Template;
+import androidx.car.app.versioning.CarAppApiLevels;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
 
+import com.example.androidautomedia.shared.LibrarySnapshot;
 import com.example.androidautomedia.shared.MyMusicService;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
+/**
+ * One page of one browse node of {@link MyMusicService}.
+ * <p>
+ * The first screen connects to the service and lists the browse root; choosing a browsable row
+ * pushes a screen for that node. When the node has more children than fit, the last row shows the
+ * next page in place and back returns to the previous one, so paging through a long node never
+ * adds to the host's limited stack of templates. A page holds no more rows than the host's list
+ * limit, so no template ever exceeds it.
+ * <p>
+ * Templates are rebuilt only when what they show changed, and invalidations are coalesced to at
+ * most one every {@link #MIN_INVALIDATE_INTERVAL_MS}: each one costs the host a template refresh.
+ * Until its page arrives a screen shows the loading template, which the page then refreshes
+ * without counting as a new step.
+ * <p>
+ * The list of all songs is read from the service's {@link LibrarySnapshot}, since the service
+ * runs in this process; only the other nodes are browsed.
+ */
 public class AndroidMediaScreen extends Screen {
 
-    private List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
-    private MediaBrowserCompat mediaBrowser;
-    private MediaSessionCompat.Token mediaSessionToken;
+    // Rows a list can show on hosts too old to report their limit
+    private static final int DEFAULT_LIST_ROWS = 6;
+    private static final long MIN_INVALIDATE_INTERVAL_MS = 1000;
+
+    private final MediaBrowserCompat mediaBrowser;
+    // The screen that connected to the service; every screen pushed from it shares its connection
+    private final AndroidMediaScreen rootScreen;
+    private final String parentId;
+    private final String title;
+    private final int pageSize;
+    private int page;
+    // Null until the page is loaded
+    private List<MediaBrowserCompat.MediaItem> mediaItems;
+    // Whether the node has children past this page, known from the child after it
+    private boolean hasNextPage;
+    // Instead of mediaItems on the all songs screens; EMPTY until the library is loaded
+    private LibrarySnapshot librarySnapshot = LibrarySnapshot.EMPTY;
     private MediaControllerCompat mediaController;
+    // Now playing, as published in the session metadata
+    private MediaMetadataCompat metadata;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable invalidateRunnable = this::invalidateNow;
+    private boolean invalidatePending;
+    private long lastInvalidateTime;
+    // Returned by onGetTemplate until something it shows changes
+    private Template template;
 
     public AndroidMediaScreen(CarContext carContext) {
         super(carContext);
-        connectToMediaBrowserService();
+        rootScreen = this;
+        parentId = null;
+        title = null;
+        page = 0;
+        pageSize = getListRowLimit() - 1;
+        mediaBrowser = new MediaBrowserCompat(carContext,
+                new ComponentName(carContext, MyMusicService.class),
+                connectionCallback,
+                null);
+        observeLifecycle();
+        mediaBrowser.connect();
+    }
+
+    private AndroidMediaScreen(AndroidMediaScreen rootScreen, String parentId, String title) {
+        super(rootScreen.getCarContext());
+        this.rootScreen = rootScreen;
+        this.parentId = parentId;
+        this.title = title;
+        page = 0;
+        pageSize = rootScreen.pageSize;
+        mediaBrowser = rootScreen.mediaBrowser;
+        observeLifecycle();
+        if (isAllSongs()) {
+            MyMusicService.addLibrarySnapshotListener(librarySnapshotListener);
+            librarySnapshot = MyMusicService.getLibrarySnapshot();
+        } else {
+            subscribe();
+        }
+    }
+
+    private boolean isAllSongs() {
+        return MyMusicService.ALL_SONGS_ID.equals(parentId);
+    }
+
+    private void observeLifecycle() {
+        getCarContext().getOnBackPressedDispatcher().addCallback(this, previousPageCallback);
+        getLifecycle().addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onDestroy(@NonNull LifecycleOwner owner) {
+                handler.removeCallbacks(invalidateRunnable);
+                if (isAllSongs()) {
+                    MyMusicService.removeLibrarySnapshotListener(librarySnapshotListener);
+                    return;
+                }
+                if (rootScreen != AndroidMediaScreen.this) {
+                    unsubscribe();
+                    return;
+                }
+                if (mediaController != null) {
+                    mediaController.unregisterCallback(controllerCallback);
+                }
+                mediaBrowser.disconnect();
+            }
+        });
     }
 
     @NonNull
     @Override
     public Template onGetTemplate() {
-        return createTemplateWithMediaItems(mediaItems);
-    }
-
-    // Method to connect to the MediaBrowserServiceCompat
-    private void connectToMediaBrowserService() {
-        mediaBrowser = new MediaBrowserCompat(this.getCarContext(),
-                new ComponentName(this.getCarContext(), MyMusicService.class),
-                connectionCallback,
-                null);
-        mediaBrowser.connect();
+        if (template == null) {
+            template = createTemplate();
+        }
+        return template;
     }
 
     // Connection callback for the MediaBrowserServiceCompat
-    private MediaBrowserCompat.ConnectionCallback connectionCallback = new MediaBrowserCompat.ConnectionCallback() {
+    private final MediaBrowserCompat.ConnectionCallback connectionCallback = new MediaBrowserCompat.ConnectionCallback() {
         @Override
         public void onConnected() {
-            // Get the root media ID
-            String rootMediaId = mediaBrowser.getRoot();
-            // Subscribe to the media ID to receive media items
-            mediaBrowser.subscribe(rootMediaId, subscriptionCallback);
-            // Get the MediaSession token
-            mediaSessionToken = mediaBrowser.getSessionToken();
+            subscribe();
+            MediaSessionCompat.Token mediaSessionToken = mediaBrowser.getSessionToken();
             if (mediaController == null) {
                 mediaController = new MediaControllerCompat(getCarContext(), mediaSessionToken);
+                mediaController.registerCallback(controllerCallback);
+                metadata = mediaController.getMetadata();
+                requestInvalidate();
             }
         }
     };
+
+    private void subscribe() {
+        Bundle options = new Bundle();
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, page);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, pageSize);
+        mediaBrowser.subscribe(getParentId(), options, subscriptionCallback);
+        // The one child after this page, which decides whether "More" is shown
+        Bundle nextOptions = new Bundle();
+        nextOptions.putInt(MediaBrowserCompat.EXTRA_PAGE, nextChildIndex());
+        nextOptions.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, 1);
+        mediaBrowser.subscribe(getParentId(), nextOptions, nextChildCallback);
+    }
+
+    private void unsubscribe() {
+        if (mediaBrowser.isConnected()) {
+            mediaBrowser.unsubscribe(getParentId(), subscriptionCallback);
+            mediaBrowser.unsubscribe(getParentId(), nextChildCallback);
+        }
+    }
+
+    private int nextChildIndex() {
+        return (page + 1) * pageSize;
+    }
+
+    /** Shows another page of this node in place of the current one. */
+    private void showPage(int newPage) {
+        if (!isAllSongs()) {
+            unsubscribe();
+        }
+        page = newPage;
+        previousPageCallback.setEnabled(page > 0);
+        if (!isAllSongs()) {
+            mediaItems = null;
+            hasNextPage = false;
+            subscribe();
+        }
+        requestInvalidate();
+    }
+
+    // Back on a later page goes to the page before it rather than leaving the node
+    private final OnBackPressedCallback previousPageCallback = new OnBackPressedCallback(false) {
+        @Override
+        public void handleOnBackPressed() {
+            showPage(page - 1);
+        }
+    };
+
+    private String getParentId() {
+        return parentId != null ? parentId : mediaBrowser.getRoot();
+    }
+
     // Subscription callback for the MediaBrowserServiceCompat
-    private MediaBrowserCompat.SubscriptionCallback subscriptionCallback = new MediaBrowserCompat.SubscriptionCallback() {
+    private final MediaBrowserCompat.SubscriptionCallback subscriptionCallback = new MediaBrowserCompat.SubscriptionCallback() {
+        @Override
+        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                     @NonNull Bundle options) {
+            if (options.getInt(MediaBrowserCompat.EXTRA_PAGE) != page) {
+                // Of a page left since
+                return;
+            }
+            mediaItems = new ArrayList<>(children);
+            requestInvalidate();
+        }
+    };
+
+    private final MediaBrowserCompat.SubscriptionCallback nextChildCallback = new MediaBrowserCompat.SubscriptionCallback() {
+        @Override
+        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                     @NonNull Bundle options) {
+            if (options.getInt(MediaBrowserCompat.EXTRA_PAGE) != nextChildIndex()) {
+                return;
+            }
+            if (hasNextPage != !children.isEmpty()) {
+                hasNextPage = !children.isEmpty();
+                requestInvalidate();
+            }
+        }
+    };
+
+    private final Consumer<LibrarySnapshot> librarySnapshotListener = new Consumer<LibrarySnapshot>() {
         @Override
-        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
-            mediaItems.clear();
-            mediaItems.addAll(children);
+        public void accept(LibrarySnapshot snapshot) {
+            LibrarySnapshot oldSnapshot = librarySnapshot;
+            librarySnapshot = snapshot;
+            // Most changes are elsewhere in the library and leave this page as it is
+            if (oldSnapshot.getVersion() == 0 || pageChanged(oldSnapshot, snapshot)) {
+                requestInvalidate();
+            }
         }
     };
 
-    private Template createTemplateWithMediaItems(List<MediaBrowserCompat.MediaItem> mediaItemsList){
-        Pane.Builder paneBuilder = new Pane.Builder();
-        for (MediaBrowserCompat.MediaItem mediaItem : mediaItemsList) {
-            CharSequence title = mediaItem.getDescription().getTitle();
-            if (title != null) {
-                Row row = new Row.Builder()
-                        .setTitle(title.toString())
-                        .setOnClickListener(() -> {
-                            if (mediaItem.isPlayable()) {
-                                playSong(mediaItem.getMediaId());
-                            }
-                        })
-                        .build();
-                paneBuilder.addRow(row);
+    private boolean pageChanged(LibrarySnapshot oldSnapshot, LibrarySnapshot newSnapshot) {
+        int from = page * pageSize;
+        // One row past the page decides whether "More" is shown
+        int to = from + pageSize + 1;
+        if (Math.min(oldSnapshot.size(), to) != Math.min(newSnapshot.size(), to)) {
+            return true;
+        }
+        for (int i = from; i < Math.min(newSnapshot.size(), to); i++) {
+            if (oldSnapshot.getId(i) != newSnapshot.getId(i)
+                    || !oldSnapshot.hasSameTitle(i, newSnapshot, i)
+                    || !oldSnapshot.getArtist(i).equals(newSnapshot.getArtist(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final MediaControllerCompat.Callback controllerCallback = new MediaControllerCompat.Callback() {
+        @Override
+        public void onMetadataChanged(MediaMetadataCompat metadata) {
+            String oldTitle = getTitle();
+            AndroidMediaScreen.this.metadata = metadata;
+            // Only the header shows it; new album art alone is not worth a refresh
+            if (!TextUtils.equals(oldTitle, getTitle())) {
+                requestInvalidate();
             }
         }
-        return new PaneTemplate.Builder(paneBuilder.build())
-                .setTitle("Song List")
-                .setHeaderAction(Action.APP_ICON)
-                .build();
+    };
+
+    /** Rebuilds the template on the next invalidation, which is sent as soon as the host allows. */
+    private void requestInvalidate() {
+        template = null;
+        if (invalidatePending) {
+            return;
+        }
+        invalidatePending = true;
+        long delay = lastInvalidateTime + MIN_INVALIDATE_INTERVAL_MS - SystemClock.elapsedRealtime();
+        handler.postDelayed(invalidateRunnable, Math.max(0, delay));
+    }
+
+    private void invalidateNow() {
+        invalidatePending = false;
+        lastInvalidateTime = SystemClock.elapsedRealtime();
+        invalidate();
     }
+
+    private int getListRowLimit() {
+        if (getCarContext().getCarAppApiLevel() < CarAppApiLevels.LEVEL_2) {
+            return DEFAULT_LIST_ROWS;
+        }
+        return getCarContext().getCarService(ConstraintManager.class)
+                .getContentLimit(ConstraintManager.CONTENT_LIMIT_TYPE_LIST);
+    }
+
+    private Template createTemplate() {
+        ListTemplate.Builder builder = new ListTemplate.Builder()
+                .setTitle(getTitle());
+        if (rootScreen == this) {
+            builder.setHeaderAction(Action.APP_ICON);
+        } else {
+            builder.setHeaderAction(Action.BACK);
+        }
+        boolean hasMore;
+        ItemList.Builder listBuilder = new ItemList.Builder()
+                .setNoItemsMessage(getCarContext().getString(R.string.no_songs));
+        if (isAllSongs()) {
+            if (librarySnapshot.getVersion() == 0) {
+                return builder.setLoading(true).build();
+            }
+            int from = page * pageSize;
+            int to = Math.min(librarySnapshot.size(), from + pageSize);
+            for (int i = from; i < to; i++) {
+                listBuilder.addItem(createSongRow(i));
+            }
+            hasMore = librarySnapshot.size() > to;
+        } else {
+            if (mediaItems == null) {
+                return builder.setLoading(true).build();
+            }
+            for (MediaBrowserCompat.MediaItem mediaItem : mediaItems) {
+                Row row = createRow(mediaItem);
+                if (row != null) {
+                    listBuilder.addItem(row);
+                }
+            }
+            hasMore = hasNextPage;
+        }
+        // The row limit keeps one row free for this
+        if (hasMore) {
+            listBuilder.addItem(new Row.Builder()
+                    .setTitle(getCarContext().getString(R.string.more))
+                    .setBrowsable(true)
+                    .setOnClickListener(() -> showPage(page + 1))
+                    .build());
+        }
+        return builder.setSingleList(listBuilder.build()).build();
+    }
+
+    private Row createSongRow(int position) {
+        String mediaId = librarySnapshot.getMediaId(position);
+        Row.Builder rowBuilder = new Row.Builder()
+                .setTitle(librarySnapshot.getTitle(position))
+                .setOnClickListener(() -> playSong(mediaId));
+        if (!librarySnapshot.getArtist(position).isEmpty()) {
+            rowBuilder.addText(librarySnapshot.getArtist(position));
+        }
+        return rowBuilder.build();
+    }
+
+    private Row createRow(MediaBrowserCompat.MediaItem mediaItem) {
+        MediaDescriptionCompat description = mediaItem.getDescription();
+        CharSequence itemTitle = description.getTitle();
+        if (itemTitle == null) {
+            return null;
+        }
+        Row.Builder rowBuilder = new Row.Builder()
+                .setTitle(itemTitle.toString());
+        if (description.getSubtitle() != null) {
+            rowBuilder.addText(description.getSubtitle().toString());
+        }
+        if (mediaItem.isBrowsable()) {
+            rowBuilder.setBrowsable(true)
+                    .setOnClickListener(() -> getScreenManager().push(
+                            new AndroidMediaScreen(rootScreen, mediaItem.getMediaId(), itemTitle.toString())));
+        } else if (mediaItem.isPlayable()) {
+            rowBuilder.setOnClickListener(() -> playSong(mediaItem.getMediaId()));
+        }
+        return rowBuilder.build();
+    }
+
+    /**
+     * The song playing and its length, from the session metadata, on the first screen; the node's
+     * name on the others.
+     */
+    private String getTitle() {
+        if (rootScreen != this) {
+            return title;
+        }
+        String title = metadata != null ? metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE) : null;
+        if (title == null) {
+            return getCarContext().getString(R.string.library);
+        }
+        long duration = metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        return duration > 0 ? title + " (" + DateUtils.formatElapsedTime(duration / 1000) + ")" : title;
+    }
+
     private void playSong(String mediaId) {
+            MediaControllerCompat mediaController = rootScreen.mediaController;
             if (mediaController != null) {
-                mediaController.getTransportControls().playFromMediaId(mediaId, null);
+                // Queues the songs of this node, from the chosen one on
+                Bundle extras = new Bundle();
+                extras.putString(MyMusicService.EXTRA_PARENT_ID, parentId);
+                mediaController.getTransportControls().playFromMediaId(mediaId, extras);
             }
     }
 }
-
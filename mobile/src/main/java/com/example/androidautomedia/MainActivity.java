@@ -1,23 +1,18 @@
 package com.example.androidautomedia;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
@@ -25,27 +20,34 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import com.example.androidautomedia.shared.LibrarySnapshot;
 import com.example.androidautomedia.shared.MyMusicService;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
+import java.util.function.Consumer;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int MY_PERMISSIONS_REQUEST_READ_EXTERNAL_STORAGE = 123; // Choose any unique integer value
     private static final String TAG = "MainActivity";
-    private static final String MY_MEDIA_ROOT_ID = "media_root_id";
+    private static final long SEEK_BAR_TICK_MS = 1000;
     private TextView currentSongTextView;
     private Button playPauseButton;
     private SeekBar seekBar;
     private MediaBrowserCompat mediaBrowser;
 
-    private ArrayList<String> songTitles = new ArrayList<>();
-    private ArrayList<String> mediaIds = new ArrayList<>();
+    private SongListAdapter songListAdapter;
+    // The service runs in this process, so the song list is read from its snapshot, not browsed
+    private final Consumer<LibrarySnapshot> librarySnapshotListener =
+            snapshot -> songListAdapter.submitSnapshot(snapshot);
     MediaControllerCompat mediaController;
+    // Last state the session published; the seek bar extrapolates from it instead of polling
+    private PlaybackStateCompat playbackState;
+    private boolean userSeeking;
+    // Disconnected in onStop, to connect again once visible
+    private boolean reconnectOnStart;
 
 @Override
 protected void onCreate(Bundle savedInstanceState) {
@@ -54,6 +56,8 @@ protected void onCreate(Bundle savedInstanceState) {
     currentSongTextView = findViewById(R.id.text_current_song);
     playPauseButton = findViewById(R.id.button_play_pause);
     seekBar = findViewById(R.id.seek_bar);
+    initializeSongList();
+    initializeControls();
     // Check if READ_EXTERNAL_STORAGE permission is granted
     if (ContextCompat.checkSelfPermission(this,
             Manifest.permission.READ_EXTERNAL_STORAGE)
@@ -84,29 +88,29 @@ protected void onCreate(Bundle savedInstanceState) {
             }
         }
     }
-    private final BroadcastReceiver durationReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if ("song_duration_update".equals(intent.getAction())) {
-                int duration = intent.getIntExtra("duration", 0);
-                seekBar.setMax(duration);
-            }
-        }
-    };
+
     @Override
     protected void onStart() {
         super.onStart();
-        LocalBroadcastManager.getInstance(this)
-                .registerReceiver(durationReceiver, new IntentFilter("song_duration_update"));
+        if (reconnectOnStart) {
+            reconnectOnStart = false;
+            mediaBrowser.connect();
+        }
     }
-    
+
     @Override
     protected void onStop() {
         super.onStop();
-        if (mediaBrowser.isConnected()) {
+        seekBar.removeCallbacks(updateSeekBarRunnable);
+        if (mediaController != null) {
+            // A new controller is made on every connect; the old one must not keep this activity
+            mediaController.unregisterCallback(mediaControllerCallback);
+        }
+        MyMusicService.removeLibrarySnapshotListener(librarySnapshotListener);
+        if (mediaBrowser != null && mediaBrowser.isConnected()) {
             mediaBrowser.disconnect();
+            reconnectOnStart = true;
         }
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(durationReceiver);
     }
 
 
@@ -136,7 +140,8 @@ protected void onCreate(Bundle savedInstanceState) {
     private final MediaBrowserCompat.ConnectionCallback connectionCallback = new MediaBrowserCompat.ConnectionCallback() {
         @Override
         public void onConnected() {
-            mediaBrowser.subscribe(MY_MEDIA_ROOT_ID, subscriptionCallback);
+            MyMusicService.addLibrarySnapshotListener(librarySnapshotListener);
+            songListAdapter.submitSnapshot(MyMusicService.getLibrarySnapshot());
             MediaSessionCompat.Token token = mediaBrowser.getSessionToken();
             mediaController = new MediaControllerCompat(MainActivity.this, token);
             MediaControllerCompat.setMediaController(MainActivity.this, mediaController);
@@ -144,22 +149,17 @@ protected void onCreate(Bundle savedInstanceState) {
         }
     };
 
-    private final MediaBrowserCompat.SubscriptionCallback subscriptionCallback = new MediaBrowserCompat.SubscriptionCallback() {
-        @Override
-        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
-            updateUI(children);
-        }
-    };
     private final MediaControllerCompat.Callback mediaControllerCallback = new MediaControllerCompat.Callback() {
         @Override
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
             super.onPlaybackStateChanged(state);
+            playbackState = state;
+            seekBar.removeCallbacks(updateSeekBarRunnable);
             if (state != null) {
+                updateSeekBarRunnable.run();
                 if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
-                    updateSeekBarRunnable.run();
                     playPauseButton.setText(R.string.pause);
                 } else {
-                    seekBar.removeCallbacks(updateSeekBarRunnable);
                     playPauseButton.setText(R.string.play);
                 }
             }
@@ -168,47 +168,50 @@ protected void onCreate(Bundle savedInstanceState) {
         @Override
         public void onMetadataChanged(MediaMetadataCompat metadata) {
             super.onMetadataChanged(metadata);
+            if (metadata == null) {
+                return;
+            }
             String title = metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
             currentSongTextView.setText(title);
+            seekBar.setMax((int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
         }
 
     };
 
+    /**
+     * Moves the seek bar to where playback is now, worked out from the last published state's
+     * position, speed and update time; keeps ticking while playing.
+     */
     private final Runnable updateSeekBarRunnable = new Runnable() {
         @Override
         public void run() {
-            MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(MainActivity.this);
-            if (mediaController != null && seekBar != null) {
-                PlaybackStateCompat playbackState = mediaController.getPlaybackState();
-                if (playbackState != null && playbackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
-                    long currentPosition = playbackState.getPosition();
-                    seekBar.setProgress((int)currentPosition);
-                }
+            PlaybackStateCompat state = playbackState;
+            if (state == null || state.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN) {
+                return;
+            }
+            if (!userSeeking) {
+                long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+                seekBar.setProgress((int) (state.getPosition() + elapsed * state.getPlaybackSpeed()));
+            }
+            if (state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                seekBar.postDelayed(this, SEEK_BAR_TICK_MS);
             }
-            assert seekBar != null;
-            seekBar.postDelayed(this, 1000); // Update seek bar every second
         }
     };
-    private void updateUI(List<MediaBrowserCompat.MediaItem> mediaItems) {
-        ListView listView = findViewById(R.id.list_view);
-        for (MediaBrowserCompat.MediaItem mediaItem : mediaItems) {
-            String title = Objects.requireNonNull(mediaItem.getDescription().getTitle()).toString();
-            String mediaId = mediaItem.getMediaId(); 
-            songTitles.add(title);
-            mediaIds.add(mediaId);
-        }
 
-        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, songTitles);
-        listView.setAdapter(adapter);
-        listView.setOnItemClickListener((parent, view, position, id) -> {
-            String mediaId = mediaIds.get(position);
-            playSong(mediaId);
-        });
+    private void initializeSongList() {
+        RecyclerView songList = findViewById(R.id.song_list);
+        songListAdapter = new SongListAdapter(this::playSong);
+        songList.setLayoutManager(new LinearLayoutManager(this));
+        songList.setHasFixedSize(true);
+        songList.setAdapter(songListAdapter);
+    }
+
+    private void initializeControls() {
         Button previousButton = findViewById(R.id.button_previous);
         previousButton.setOnClickListener((id)-> skipToPrevious());
         Button nextButton = findViewById(R.id.button_next);
         nextButton.setOnClickListener((id)->skipToNext());
-        Button playPauseButton = findViewById(R.id.button_play_pause);
         playPauseButton.setOnClickListener((id)->{
             MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(MainActivity.this);
             if (mediaController != null) {
@@ -221,34 +224,28 @@ protected void onCreate(Bundle savedInstanceState) {
                 Log.d("ELSE","mediaController is NULL");
             }
         });
-        TextView txtMarquee = (TextView) findViewById(R.id.text_current_song);
-        txtMarquee.setSelected(true);
-        MediaControllerCompat mediaController = MediaControllerCompat.getMediaController(MainActivity.this);
-        if (mediaController != null) {
+        currentSongTextView.setSelected(true);
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if(fromUser){
-                    Log.d("SEEK TO", String.valueOf(progress));
-                    mediaController.getTransportControls().seekTo((int)progress);
-                }
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-                if (mediaController.getPlaybackState().getState() == PlaybackStateCompat.STATE_PLAYING) {
-                    mediaController.getTransportControls().pause();
-                }
+                // Playback carries on while dragging; only where the thumb is let go is sent
+                userSeeking = true;
             }
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-                if (mediaController.getPlaybackState().getState() == PlaybackStateCompat.STATE_PAUSED) {
-                    mediaController.getTransportControls().play();
+                userSeeking = false;
+                Log.d("SEEK TO", String.valueOf(seekBar.getProgress()));
+                if (mediaController != null) {
+                    mediaController.getTransportControls().seekTo(seekBar.getProgress());
                 }
             }
-        });}
-
+        });
     }
+
     private void playSong(String mediaId) {
         if (mediaController != null) {
             mediaController.getTransportControls().playFromMediaId(mediaId, null);
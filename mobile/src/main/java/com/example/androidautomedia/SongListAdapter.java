@@ -0,0 +1,141 @@
+package com.example.androidautomedia;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.androidautomedia.shared.LibrarySnapshot;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The song list of {@link MainActivity}, read straight from the service's
+ * {@link LibrarySnapshot}. Each new snapshot is diffed against the shown one on a background
+ * thread, so a library change only rebinds the rows that changed, and only rows on screen are
+ * ever bound.
+ * <p>
+ * Row ids are the songs' MediaStore ids, so the list keeps its place and animations across
+ * updates.
+ */
+final class SongListAdapter extends RecyclerView.Adapter<SongListAdapter.SongViewHolder> {
+
+    interface OnSongClickListener {
+        void onSongClick(String mediaId);
+    }
+
+    private static final Executor DIFF_EXECUTOR =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "SongListDiff"));
+
+    private final OnSongClickListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private LibrarySnapshot snapshot = LibrarySnapshot.EMPTY;
+    // The snapshot last submitted; a diff finishing after a newer one was submitted is dropped
+    private LibrarySnapshot latestSnapshot = LibrarySnapshot.EMPTY;
+
+    SongListAdapter(OnSongClickListener listener) {
+        this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    /** Shows {@code newSnapshot} once its diff against the shown one is worked out. */
+    void submitSnapshot(LibrarySnapshot newSnapshot) {
+        if (newSnapshot.getVersion() == latestSnapshot.getVersion()) {
+            return;
+        }
+        latestSnapshot = newSnapshot;
+        LibrarySnapshot oldSnapshot = snapshot;
+        if (oldSnapshot.size() == 0 || newSnapshot.size() == 0) {
+            // Nothing to keep in place
+            snapshot = newSnapshot;
+            notifyDataSetChanged();
+            return;
+        }
+        DIFF_EXECUTOR.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new SnapshotDiff(oldSnapshot, newSnapshot));
+            mainHandler.post(() -> {
+                if (latestSnapshot == newSnapshot) {
+                    snapshot = newSnapshot;
+                    result.dispatchUpdatesTo(this);
+                }
+            });
+        });
+    }
+
+    @Override
+    public int getItemCount() {
+        return snapshot.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return snapshot.getId(position);
+    }
+
+    @NonNull
+    @Override
+    public SongViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_1, parent, false);
+        return new SongViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull SongViewHolder holder, int position) {
+        holder.titleView.setText(snapshot.getTitle(position));
+    }
+
+    final class SongViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView titleView;
+
+        SongViewHolder(View itemView) {
+            super(itemView);
+            titleView = itemView.findViewById(android.R.id.text1);
+            itemView.setOnClickListener(view -> {
+                int position = getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) {
+                    listener.onSongClick(snapshot.getMediaId(position));
+                }
+            });
+        }
+    }
+
+    private static final class SnapshotDiff extends DiffUtil.Callback {
+
+        private final LibrarySnapshot oldSnapshot;
+        private final LibrarySnapshot newSnapshot;
+
+        SnapshotDiff(LibrarySnapshot oldSnapshot, LibrarySnapshot newSnapshot) {
+            this.oldSnapshot = oldSnapshot;
+            this.newSnapshot = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldSnapshot.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newSnapshot.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return oldSnapshot.getId(oldPosition) == newSnapshot.getId(newPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return oldSnapshot.hasSameTitle(oldPosition, newSnapshot, newPosition);
+        }
+    }
+}
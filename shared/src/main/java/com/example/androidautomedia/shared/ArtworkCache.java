@@ -0,0 +1,222 @@
+package com.example.androidautomedia.shared;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Album art scaled down to what a head unit or phone list shows, so no client ever decodes a
+ * full-size cover.
+ * <p>
+ * Art is keyed by album id, since every song of an album shares it. The MediaStore original is
+ * decoded with {@link BitmapFactory.Options#inSampleSize} (only the bounds are read at full size),
+ * trimmed to {@link #TARGET_SIZE} and written once as a small JPEG to the cache directory, which
+ * {@link ArtworkProvider} serves to other apps. Recently used bitmaps are also kept in a memory
+ * LRU bounded in bytes, for the session metadata. Albums without art are remembered so they are
+ * not looked up again. {@link #invalidate} drops both when MediaStore reports changed songs.
+ * <p>
+ * One instance per process, shared by {@link MyMusicService} and {@link ArtworkProvider}. Safe to
+ * use from any thread; the blocking methods must not be called on the main thread.
+ */
+final class ArtworkCache {
+
+    private static final String TAG = "ArtworkCache";
+    /** Longest edge, in pixels, of cached art. */
+    static final int TARGET_SIZE = 320;
+    private static final String DIRECTORY = "artwork";
+    private static final int JPEG_QUALITY = 90;
+    // Share of the heap the bitmaps may take
+    private static final int MEMORY_FRACTION = 32;
+
+    private static ArtworkCache instance;
+
+    private final ContentResolver contentResolver;
+    private final File directory;
+    private final LruCache<Long, Bitmap> bitmaps;
+    private final Set<Long> missing = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "ArtworkCache"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private ArtworkCache(Context context) {
+        contentResolver = context.getContentResolver();
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        bitmaps = new LruCache<Long, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION)) {
+            @Override
+            protected int sizeOf(Long albumId, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    static synchronized ArtworkCache get(Context context) {
+        if (instance == null) {
+            instance = new ArtworkCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** The album's art if it is in memory, otherwise null. Never blocks. */
+    Bitmap getCached(long albumId) {
+        return bitmaps.get(albumId);
+    }
+
+    /**
+     * Loads the album's art on a worker and passes it to {@code callback} on the main thread. The
+     * callback is not called when the album has no art.
+     */
+    void load(long albumId, Consumer<Bitmap> callback) {
+        if (missing.contains(albumId)) {
+            return;
+        }
+        executor.execute(() -> {
+            Bitmap bitmap = getBitmap(albumId);
+            if (bitmap != null) {
+                mainHandler.post(() -> callback.accept(bitmap));
+            }
+        });
+    }
+
+    /** The album's art, from memory, disk or MediaStore in that order, or null. Blocks. */
+    Bitmap getBitmap(long albumId) {
+        Bitmap bitmap = bitmaps.get(albumId);
+        if (bitmap != null || missing.contains(albumId)) {
+            return bitmap;
+        }
+        File file = fileOf(albumId);
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+        }
+        if (bitmap == null) {
+            bitmap = decodeOriginal(albumId);
+            if (bitmap == null) {
+                missing.add(albumId);
+                return null;
+            }
+            write(bitmap, file);
+        }
+        bitmaps.put(albumId, bitmap);
+        return bitmap;
+    }
+
+    /** The scaled JPEG of the album's art, created if needed, or null if it has none. Blocks. */
+    File getFile(long albumId) {
+        File file = fileOf(albumId);
+        if (file.exists()) {
+            return file;
+        }
+        getBitmap(albumId);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Forgets the art of the given albums, in memory and on disk, and that they had none: the next
+     * request decodes the MediaStore original again. Runs after the loads already queued, so none
+     * of them writes the old art back.
+     */
+    void invalidate(Set<Long> albumIds) {
+        executor.execute(() -> {
+            for (long albumId : albumIds) {
+                missing.remove(albumId);
+                bitmaps.remove(albumId);
+                File file = fileOf(albumId);
+                if (file.exists() && !file.delete()) {
+                    Log.e(TAG, "Cannot delete " + file);
+                }
+            }
+        });
+    }
+
+    private File fileOf(long albumId) {
+        return new File(directory, albumId + ".jpg");
+    }
+
+    private Bitmap decodeOriginal(long albumId) {
+        Uri uri = ContentUris.withAppendedId(MediaStoreScanner.ALBUM_ART_URI, albumId);
+        try (ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(uri, "r")) {
+            if (descriptor == null) {
+                return null;
+            }
+            // Read the size first, then decode no larger than needed
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+            options.inJustDecodeBounds = false;
+            Bitmap decoded = BitmapFactory.decodeFileDescriptor(descriptor.getFileDescriptor(), null, options);
+            return decoded != null ? scaleDown(decoded) : null;
+        } catch (IOException | SecurityException e) {
+            // Most albums without art end up here
+            return null;
+        }
+    }
+
+    /** Largest power of two that keeps the shorter edge at or above the target size. */
+    private static int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= TARGET_SIZE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleDown(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (Math.max(width, height) <= TARGET_SIZE) {
+            return bitmap;
+        }
+        float scale = (float) TARGET_SIZE / Math.max(width, height);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /** Writes through a temporary file, so readers never see half a JPEG. */
+    private void write(Bitmap bitmap, File file) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+            return;
+        }
+        File temporary = null;
+        try {
+            temporary = File.createTempFile(file.getName(), null, directory);
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+            if (!temporary.renameTo(file)) {
+                Log.e(TAG, "Cannot rename " + temporary + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing artwork " + file + ": " + e.getMessage());
+        } finally {
+            if (temporary != null && temporary.exists()) {
+                temporary.delete();
+            }
+        }
+    }
+}
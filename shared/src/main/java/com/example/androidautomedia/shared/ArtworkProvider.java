@@ -0,0 +1,114 @@
+package com.example.androidautomedia.shared;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.MediaItem;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.List;
+
+/**
+ * Serves album art scaled by {@link ArtworkCache} at
+ * {@code content://<application id>.artwork/album/<album id>}, so the car host and the phone UI
+ * fetch a small JPEG instead of decoding the MediaStore original themselves. Read-only.
+ * <p>
+ * Not exported: {@link MyMusicService} grants read access to each browser that connects.
+ */
+public final class ArtworkProvider extends ContentProvider {
+
+    private static final String AUTHORITY_SUFFIX = ".artwork";
+    private static final String PATH_ALBUM = "album";
+
+    /** The art of {@code item}'s album as served by this provider, or null if it has no album. */
+    static Uri artworkUri(Context context, MediaItem item) {
+        Bundle extras = item.mediaMetadata.extras;
+        if (extras == null || !extras.containsKey(MediaStoreScanner.EXTRA_ALBUM_ID)) {
+            return null;
+        }
+        return artworkUri(context, extras.getLong(MediaStoreScanner.EXTRA_ALBUM_ID));
+    }
+
+    /** The art of the album with the given MediaStore id as served by this provider. */
+    static Uri artworkUri(Context context, long albumId) {
+        return albumsUri(context).buildUpon()
+                .appendPath(String.valueOf(albumId))
+                .build();
+    }
+
+    /** Lets {@code packageName} read the art of every album, until the device restarts. */
+    static void grantReadAccess(Context context, String packageName) {
+        context.grantUriPermission(packageName, albumsUri(context),
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PREFIX_URI_PERMISSION);
+    }
+
+    private static Uri albumsUri(Context context) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(context.getPackageName() + AUTHORITY_SUFFIX)
+                .appendPath(PATH_ALBUM)
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Artwork is read-only: " + uri);
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 2 || !PATH_ALBUM.equals(segments.get(0))) {
+            throw new FileNotFoundException("Unknown artwork " + uri);
+        }
+        long albumId;
+        try {
+            albumId = Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Unknown artwork " + uri);
+        }
+        File file = ArtworkCache.get(getContext()).getFile(albumId);
+        if (file == null) {
+            throw new FileNotFoundException("No artwork for album " + albumId);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return "image/jpeg";
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
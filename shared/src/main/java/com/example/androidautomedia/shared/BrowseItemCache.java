@@ -0,0 +1,70 @@
+package com.example.androidautomedia.shared;
+
+import android.support.v4.media.MediaBrowserCompat;
+
+import androidx.collection.LruCache;
+import androidx.media3.common.MediaItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Keeps the browse items built for songs, so repeated browses from the phone and the car reuse
+ * them instead of allocating a new description and item per song per call.
+ * <p>
+ * Entries are keyed by media id and stamped with the song's MediaStore generation and modification
+ * time, all read straight from the {@link SongColumns} asked about; the song's {@link MediaItem} is
+ * only built to convert it, when it has no entry or changed since its entry was built. Browse items
+ * are immutable, so the same instance can be handed out on any thread. Safe to use from the main
+ * and the loader thread.
+ */
+final class BrowseItemCache {
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private final Function<MediaItem, MediaBrowserCompat.MediaItem> converter;
+    private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+    BrowseItemCache(Function<MediaItem, MediaBrowserCompat.MediaItem> converter) {
+        this.converter = converter;
+    }
+
+    /** The browse item of the song at {@code index} of {@code songs}. */
+    MediaBrowserCompat.MediaItem get(SongColumns songs, int index) {
+        String mediaId = String.valueOf(songs.id(index));
+        long generation = songs.generation(index);
+        long dateModified = songs.dateModified(index);
+        Entry entry = entries.get(mediaId);
+        if (entry != null && entry.generation == generation && entry.dateModified == dateModified) {
+            return entry.browseItem;
+        }
+        MediaBrowserCompat.MediaItem browseItem = converter.apply(songs.get(index));
+        entries.put(mediaId, new Entry(generation, dateModified, browseItem));
+        return browseItem;
+    }
+
+    List<MediaBrowserCompat.MediaItem> getAll(SongColumns songs) {
+        List<MediaBrowserCompat.MediaItem> browseItems = new ArrayList<>(songs.size());
+        for (int i = 0; i < songs.size(); i++) {
+            browseItems.add(get(songs, i));
+        }
+        return browseItems;
+    }
+
+    void remove(String mediaId) {
+        entries.remove(mediaId);
+    }
+
+    private static final class Entry {
+        final long generation;
+        final long dateModified;
+        final MediaBrowserCompat.MediaItem browseItem;
+
+        Entry(long generation, long dateModified, MediaBrowserCompat.MediaItem browseItem) {
+            this.generation = generation;
+            this.dateModified = dateModified;
+            this.browseItem = browseItem;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.example.androidautomedia.shared;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The browse hierarchy exposed by {@link MyMusicService}:
+ *
+ * <pre>
+ * root
+ *  +- songs                      every song, title order
+ *  +- artists -> artist:NAME     that artist's albums -> album:ID
+ *  +- albums  -> album:ID        the album's songs
+ *  +- genres  -> genre:NAME      the genre's songs (Android 11+)
+ *  +- folders -> folder:PATH     the folder's songs
+ * </pre>
+ *
+ * Grouping (artist, album, genre, folder) is built the first time a grouped node is browsed, in
+ * one pass over the columns of a library snapshot on the loader thread; requests arriving
+ * meanwhile are answered once it is in. After that it is kept up to date with library deltas.
+ * Children of a node are materialized when the node is first requested and cached until a delta
+ * touches it, so a browse call costs O(node) rather than O(library). The songs node is not cached
+ * here; it is served from the library by the loader.
+ * <p>
+ * Only the main thread touches it, apart from {@link Groups#build}.
+ */
+final class BrowseTree {
+
+    static final String ROOT_ID = "media_root_id";
+    static final String SONGS_ID = "songs";
+    static final String ARTISTS_ID = "artists";
+    static final String ALBUMS_ID = "albums";
+    static final String GENRES_ID = "genres";
+    static final String FOLDERS_ID = "folders";
+
+    private static final String ARTIST_PREFIX = "artist:";
+    private static final String ALBUM_PREFIX = "album:";
+    private static final String GENRE_PREFIX = "genre:";
+    private static final String FOLDER_PREFIX = "folder:";
+
+    private final Context context;
+    private final MusicLibrary library;
+    private final BrowseItemCache browseItemCache;
+    private final LibraryLoader libraryLoader;
+    private final Map<String, List<MediaBrowserCompat.MediaItem>> childrenCache = new HashMap<>();
+    // Null until built
+    private Groups groups;
+    // While a grouping is built: the requests waiting for it, and the deltas it has yet to see
+    private final List<Runnable> waitingForGroups = new ArrayList<>();
+    private final List<Delta> pendingDeltas = new ArrayList<>();
+    private boolean building;
+    // Tells the grouping asked for last from one started before a reset
+    private int buildRequest;
+
+    BrowseTree(Context context, MusicLibrary library, BrowseItemCache browseItemCache,
+               LibraryLoader libraryLoader) {
+        this.context = context;
+        this.library = library;
+        this.browseItemCache = browseItemCache;
+        this.libraryLoader = libraryLoader;
+    }
+
+    /** The children of the root, which never need the grouping. */
+    List<MediaBrowserCompat.MediaItem> getRootChildren() {
+        return getCachedChildren(ROOT_ID);
+    }
+
+    /**
+     * Hands the children of a node other than {@link #SONGS_ID} to {@code callback}, or null if
+     * there is no such node: right away when the grouping is built, otherwise once it is.
+     */
+    void getChildren(String nodeId, Consumer<List<MediaBrowserCompat.MediaItem>> callback) {
+        if (groups != null || ROOT_ID.equals(nodeId) || childrenCache.containsKey(nodeId)) {
+            callback.accept(getCachedChildren(nodeId));
+            return;
+        }
+        waitingForGroups.add(() -> callback.accept(getCachedChildren(nodeId)));
+        if (!building) {
+            buildGroups();
+        }
+    }
+
+    /**
+     * Hands the MediaStore ids of the songs of an album, genre or folder node to {@code callback}
+     * in the order they are listed in, or null if there is no such node. Waits for the grouping
+     * like {@link #getChildren}.
+     */
+    void getSongIds(String nodeId, Consumer<long[]> callback) {
+        if (groups != null) {
+            callback.accept(songIds(nodeId));
+            return;
+        }
+        waitingForGroups.add(() -> callback.accept(songIds(nodeId)));
+        if (!building) {
+            buildGroups();
+        }
+    }
+
+    private List<MediaBrowserCompat.MediaItem> getCachedChildren(String nodeId) {
+        List<MediaBrowserCompat.MediaItem> children = childrenCache.get(nodeId);
+        if (children == null) {
+            children = materialize(nodeId);
+            if (children != null) {
+                childrenCache.put(nodeId, children);
+            }
+        }
+        return children;
+    }
+
+    /** Forgets all grouping, for when the whole library has been replaced. */
+    void reset() {
+        groups = null;
+        childrenCache.clear();
+        if (building) {
+            // The one being built is of the replaced library
+            buildGroups();
+        }
+    }
+
+    /**
+     * Updates grouping for songs that changed. {@code oldSongs} are the previous versions of
+     * changed and removed songs, {@code newSongs} the new and changed ones; no MediaItem is built
+     * for either. Returns the ids of the nodes whose children changed.
+     */
+    Set<String> applyDelta(SongColumns oldSongs, SongColumns newSongs) {
+        Set<String> affected = new HashSet<>();
+        affected.add(SONGS_ID);
+        if (groups != null) {
+            applyDelta(groups, oldSongs, newSongs, affected);
+        } else if (building) {
+            // Not in the snapshot being grouped; applied once the grouping is in
+            pendingDeltas.add(new Delta(oldSongs, newSongs));
+        }
+        for (String nodeId : affected) {
+            childrenCache.remove(nodeId);
+        }
+        return affected;
+    }
+
+    private static void applyDelta(Groups groups, SongColumns oldSongs, SongColumns newSongs,
+                                   Set<String> affected) {
+        for (int i = 0; i < oldSongs.size(); i++) {
+            groups.remove(oldSongs, i, affected);
+        }
+        for (int i = 0; i < newSongs.size(); i++) {
+            groups.add(newSongs, i, affected);
+        }
+    }
+
+    /**
+     * Groups a snapshot of the library on the loader thread. Deltas arriving meanwhile are kept
+     * and replayed on the result, so a scan in progress does not restart the grouping.
+     */
+    private void buildGroups() {
+        building = true;
+        pendingDeltas.clear();
+        int request = ++buildRequest;
+        String unknown = context.getString(R.string.browse_unknown);
+        libraryLoader.buildBrowseGroups(library.snapshot(), songs -> Groups.build(context, unknown, songs),
+                built -> {
+                    if (request != buildRequest) {
+                        // Of a library replaced since
+                        return;
+                    }
+                    building = false;
+                    Set<String> ignored = new HashSet<>();
+                    for (Delta delta : pendingDeltas) {
+                        applyDelta(built, delta.oldSongs, delta.newSongs, ignored);
+                    }
+                    pendingDeltas.clear();
+                    groups = built;
+                    List<Runnable> waiting = new ArrayList<>(waitingForGroups);
+                    waitingForGroups.clear();
+                    for (Runnable waitingRequest : waiting) {
+                        waitingRequest.run();
+                    }
+                });
+    }
+
+    private List<MediaBrowserCompat.MediaItem> materialize(String nodeId) {
+        if (ROOT_ID.equals(nodeId)) {
+            return rootChildren();
+        }
+        if (groups == null) {
+            return null;
+        }
+        switch (nodeId) {
+            case ARTISTS_ID:
+                return groupList(groups.artists.values());
+            case ALBUMS_ID:
+                return groupList(groups.albums.values());
+            case GENRES_ID:
+                return groupList(groups.genres.values());
+            case FOLDERS_ID:
+                return groupList(groups.folders.values());
+        }
+        if (nodeId.startsWith(ARTIST_PREFIX)) {
+            Group artist = groups.artists.get(nodeId);
+            return artist != null ? artistAlbums(artist) : null;
+        }
+        Group group = groups.find(nodeId);
+        if (group == null) {
+            return null;
+        }
+        return browseItemCache.getAll(library.snapshotOf(songIds(nodeId, group)));
+    }
+
+    private long[] songIds(String nodeId) {
+        Group group = groups != null ? groups.find(nodeId) : null;
+        return group != null ? songIds(nodeId, group) : null;
+    }
+
+    /** The ids of a group's songs, in the order its node lists them in. */
+    private long[] songIds(String nodeId, Group group) {
+        MusicLibrary.SortOrder order = songOrder(nodeId);
+        int[] positions = songPositions(group, order);
+        long[] ids = new long[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            ids[i] = library.idAt(order, positions[i]);
+        }
+        return ids;
+    }
+
+    private static MusicLibrary.SortOrder songOrder(String nodeId) {
+        return nodeId.startsWith(ALBUM_PREFIX) ? MusicLibrary.SortOrder.ALBUM : MusicLibrary.SortOrder.TITLE;
+    }
+
+    private List<MediaBrowserCompat.MediaItem> rootChildren() {
+        List<MediaBrowserCompat.MediaItem> children = new ArrayList<>();
+        children.add(browsable(SONGS_ID, context.getString(R.string.browse_songs), null, null));
+        children.add(browsable(ARTISTS_ID, context.getString(R.string.browse_artists), null, null));
+        children.add(browsable(ALBUMS_ID, context.getString(R.string.browse_albums), null, null));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            children.add(browsable(GENRES_ID, context.getString(R.string.browse_genres), null, null));
+        }
+        children.add(browsable(FOLDERS_ID, context.getString(R.string.browse_folders), null, null));
+        return children;
+    }
+
+    private List<MediaBrowserCompat.MediaItem> groupList(Collection<Group> groups) {
+        Group[] sorted = groups.toArray(new Group[0]);
+        Arrays.sort(sorted, (group1, group2) -> SortKeys.compare(group1.sortKey, group2.sortKey));
+        List<MediaBrowserCompat.MediaItem> children = new ArrayList<>(sorted.length);
+        for (Group group : sorted) {
+            children.add(browsable(group.nodeId, group.title, group.subtitle, group.iconUri));
+        }
+        return children;
+    }
+
+    private List<MediaBrowserCompat.MediaItem> artistAlbums(Group artist) {
+        Set<Group> artistAlbums = new LinkedHashSet<>();
+        for (int i = 0; i < artist.size; i++) {
+            long albumId = library.albumIdOf(artist.ids[i]);
+            Group album = albumId != MusicLibrary.NO_ALBUM ? groups.albums.get(ALBUM_PREFIX + albumId) : null;
+            if (album != null) {
+                artistAlbums.add(album);
+            }
+        }
+        return groupList(artistAlbums);
+    }
+
+    /** The positions of a group's songs in the given library order, sorted. */
+    private int[] songPositions(Group group, MusicLibrary.SortOrder order) {
+        int[] positions = new int[group.size];
+        int count = 0;
+        for (int i = 0; i < group.size; i++) {
+            int position = library.indexOf(order, group.ids[i]);
+            if (position >= 0) {
+                positions[count++] = position;
+            }
+        }
+        Arrays.sort(positions, 0, count);
+        return Arrays.copyOf(positions, count);
+    }
+
+    private static MediaBrowserCompat.MediaItem browsable(String nodeId, String title, String subtitle, Uri iconUri) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(nodeId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .setIconUri(iconUri)
+                .build();
+        return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * The songs of every artist, album, genre and folder. Built off the main thread by
+     * {@link #build}, then handed over and only changed on the main thread.
+     */
+    static final class Groups {
+        private final Context context;
+        private final String unknown;
+        final Map<String, Group> artists = new HashMap<>();
+        final Map<String, Group> albums = new HashMap<>();
+        final Map<String, Group> genres = new HashMap<>();
+        final Map<String, Group> folders = new HashMap<>();
+
+        private Groups(Context context, String unknown) {
+            this.context = context;
+            this.unknown = unknown;
+        }
+
+        /**
+         * Groups {@code songs} in one pass over their columns; no MediaItem is built. Walking in
+         * title order leaves every group's songs in title order too.
+         */
+        static Groups build(Context context, String unknown, SongColumns songs) {
+            Groups groups = new Groups(context, unknown);
+            Set<String> ignored = new HashSet<>();
+            for (int i = 0; i < songs.size(); i++) {
+                groups.add(songs, i, ignored);
+            }
+            return groups;
+        }
+
+        Group find(String nodeId) {
+            Group group = albums.get(nodeId);
+            if (group == null) {
+                group = genres.get(nodeId);
+            }
+            if (group == null) {
+                group = folders.get(nodeId);
+            }
+            return group;
+        }
+
+        /** Adds the song at {@code index} of {@code songs} to its groups. */
+        void add(SongColumns songs, int index, Set<String> affected) {
+            long id = songs.id(index);
+            long albumId = songs.albumId(index);
+            String artist = orUnknown(songs.artist(index));
+            String genre = songs.genre(index);
+            String folder = songs.folder(index);
+            add(artists, ARTISTS_ID, ARTIST_PREFIX + artist, artist, null, null, id, affected);
+            add(albums, ALBUMS_ID, ALBUM_PREFIX + albumId, orUnknown(songs.album(index)), artist,
+                    ArtworkProvider.artworkUri(context, albumId), id, affected);
+            if (!TextUtils.isEmpty(genre)) {
+                add(genres, GENRES_ID, GENRE_PREFIX + genre, genre, null, null, id, affected);
+            }
+            if (!TextUtils.isEmpty(folder)) {
+                add(folders, FOLDERS_ID, FOLDER_PREFIX + folder, folder, null, null, id, affected);
+            }
+        }
+
+        /** Removes the song at {@code index} of {@code songs}, as it was, from its groups. */
+        void remove(SongColumns songs, int index, Set<String> affected) {
+            long id = songs.id(index);
+            remove(artists, ARTISTS_ID, ARTIST_PREFIX + orUnknown(songs.artist(index)), id, affected);
+            remove(albums, ALBUMS_ID, ALBUM_PREFIX + songs.albumId(index), id, affected);
+            remove(genres, GENRES_ID, GENRE_PREFIX + songs.genre(index), id, affected);
+            remove(folders, FOLDERS_ID, FOLDER_PREFIX + songs.folder(index), id, affected);
+        }
+
+        private String orUnknown(String text) {
+            return TextUtils.isEmpty(text) ? unknown : text;
+        }
+
+        private static void add(Map<String, Group> groups, String categoryId, String nodeId, String title,
+                                String subtitle, Uri iconUri, long id, Set<String> affected) {
+            Group group = groups.get(nodeId);
+            if (group == null) {
+                group = new Group(nodeId, title, subtitle, iconUri);
+                groups.put(nodeId, group);
+                affected.add(categoryId);
+            }
+            group.add(id);
+            affected.add(nodeId);
+        }
+
+        private static void remove(Map<String, Group> groups, String categoryId, String nodeId, long id,
+                                   Set<String> affected) {
+            Group group = groups.get(nodeId);
+            if (group != null && group.remove(id)) {
+                affected.add(nodeId);
+                if (group.size == 0) {
+                    groups.remove(nodeId);
+                    affected.add(categoryId);
+                }
+            }
+        }
+    }
+
+    private static final class Delta {
+        final SongColumns oldSongs;
+        final SongColumns newSongs;
+
+        Delta(SongColumns oldSongs, SongColumns newSongs) {
+            this.oldSongs = oldSongs;
+            this.newSongs = newSongs;
+        }
+    }
+
+    /** The MediaStore ids of one artist, album, genre or folder. */
+    private static final class Group {
+        final String nodeId;
+        final String title;
+        final String subtitle;
+        final Uri iconUri;
+        final byte[] sortKey;
+        long[] ids = new long[4];
+        int size;
+
+        Group(String nodeId, String title, String subtitle, Uri iconUri) {
+            this.nodeId = nodeId;
+            this.title = title;
+            this.subtitle = subtitle;
+            this.iconUri = iconUri;
+            this.sortKey = SortKeys.of(title);
+        }
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        boolean remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.androidautomedia.shared;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.media3.common.AudioAttributes;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.Player;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DefaultDataSource;
+import androidx.media3.exoplayer.DefaultLoadControl;
+import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.drm.DrmSessionManagerProvider;
+import androidx.media3.exoplayer.source.MediaSource;
+import androidx.media3.exoplayer.source.ProgressiveMediaSource;
+import androidx.media3.exoplayer.upstream.LoadErrorHandlingPolicy;
+import androidx.media3.extractor.DefaultExtractorsFactory;
+import androidx.media3.extractor.Extractor;
+import androidx.media3.extractor.ExtractorsFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Playback} on ExoPlayer.
+ * <p>
+ * The player's playlist holds the current song and, once known, the next one. ExoPlayer buffers
+ * the next song ahead of the transition and plays across it without a gap; the song that ended is
+ * then dropped from the playlist. Loading a new song replaces the playlist, which also cancels a
+ * load still in progress, so rapid skips never queue up work.
+ * <p>
+ * Songs are content:// uris without a file extension or response headers, so ExoPlayer cannot
+ * tell their format up front and would try its extractors one by one until one recognises the
+ * file. MediaStore's MIME type is therefore set on each item, and the media source made for the
+ * item hands it to the extractors factory as the Content-Type, which puts the matching extractor
+ * first. The hint travels with the item, so the same song queued twice keeps it.
+ * <p>
+ * Buffers are sized for local files: playback starts after half a second of audio and at most
+ * half a minute is held in memory. Audio focus stays with {@link MyMusicService}.
+ * <p>
+ * Only the main thread touches it.
+ */
+final class ExoPlayerPlayback implements Playback, Player.Listener {
+
+    private static final String TAG = "ExoPlayerPlayback";
+    private static final int MIN_BUFFER_MS = 10_000;
+    private static final int MAX_BUFFER_MS = 30_000;
+    private static final int BUFFER_FOR_PLAYBACK_MS = 500;
+    private static final int BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS = 1_000;
+
+    private final ExoPlayer player;
+    private final Callback callback;
+    private boolean preparing;
+
+    @OptIn(markerClass = UnstableApi.class)
+    ExoPlayerPlayback(Context context, Callback callback) {
+        this.callback = callback;
+        DefaultLoadControl loadControl = new DefaultLoadControl.Builder()
+                .setBufferDurationsMs(MIN_BUFFER_MS, MAX_BUFFER_MS,
+                        BUFFER_FOR_PLAYBACK_MS, BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS)
+                .build();
+        AudioAttributes audioAttributes = new AudioAttributes.Builder()
+                .setUsage(C.USAGE_MEDIA)
+                .setContentType(C.AUDIO_CONTENT_TYPE_MUSIC)
+                .build();
+        player = new ExoPlayer.Builder(context)
+                .setMediaSourceFactory(new TypedMediaSourceFactory(context))
+                .setLoadControl(loadControl)
+                .setAudioAttributes(audioAttributes, false)
+                .build();
+        player.addListener(this);
+    }
+
+    @OptIn(markerClass = UnstableApi.class)
+    private static MediaItem buildMediaItem(String mediaId, Uri uri, String mimeType) {
+        return new MediaItem.Builder()
+                .setMediaId(mediaId)
+                .setUri(uri)
+                .setMimeType(mimeType != null ? MimeTypes.normalizeMimeType(mimeType) : null)
+                .build();
+    }
+
+    private String currentMediaId() {
+        MediaItem mediaItem = player.getCurrentMediaItem();
+        return mediaItem != null ? mediaItem.mediaId : null;
+    }
+
+    @Override
+    public void load(String mediaId, Uri uri, String mimeType) {
+        preparing = true;
+        player.setMediaItem(buildMediaItem(mediaId, uri, mimeType));
+        player.setPlayWhenReady(true);
+        player.prepare();
+    }
+
+    @Override
+    public void setNext(String mediaId, Uri uri, String mimeType) {
+        if (preparing) {
+            return;
+        }
+        int nextIndex = player.getCurrentMediaItemIndex() + 1;
+        int count = player.getMediaItemCount();
+        if (nextIndex < count && player.getMediaItemAt(nextIndex).mediaId.equals(mediaId)) {
+            return;
+        }
+        if (nextIndex < count) {
+            player.removeMediaItems(nextIndex, count);
+        }
+        player.addMediaItem(buildMediaItem(mediaId, uri, mimeType));
+    }
+
+    @Override
+    public void clearNext() {
+        int nextIndex = player.getCurrentMediaItemIndex() + 1;
+        int count = player.getMediaItemCount();
+        if (!preparing && nextIndex < count) {
+            player.removeMediaItems(nextIndex, count);
+        }
+    }
+
+    @Override
+    public void onPlaybackStateChanged(int playbackState) {
+        if (playbackState == Player.STATE_READY && preparing) {
+            preparing = false;
+            callback.onPrepared(currentMediaId());
+        } else if (playbackState == Player.STATE_ENDED) {
+            callback.onCompletion();
+        }
+    }
+
+    @Override
+    public void onMediaItemTransition(MediaItem mediaItem, int reason) {
+        if (reason != Player.MEDIA_ITEM_TRANSITION_REASON_AUTO || mediaItem == null) {
+            return;
+        }
+        // Only the current song and the next one are kept
+        player.removeMediaItems(0, player.getCurrentMediaItemIndex());
+        callback.onNextTrackStarted(mediaItem.mediaId);
+    }
+
+    @Override
+    public void onPlayerError(@NonNull PlaybackException error) {
+        Log.e(TAG, "ExoPlayer error: " + error.getErrorCodeName() + " " + error.getMessage());
+        preparing = false;
+        callback.onError(currentMediaId());
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return preparing;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        int state = player.getPlaybackState();
+        return !preparing && (state == Player.STATE_READY || state == Player.STATE_BUFFERING);
+    }
+
+    @Override
+    public void start() {
+        player.play();
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public void stop() {
+        preparing = false;
+        player.stop();
+        player.clearMediaItems();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        player.seekTo(position);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    @Override
+    public boolean isPlayWhenReady() {
+        // Stays set while the player rebuffers, when isPlaying is false
+        int state = player.getPlaybackState();
+        return player.getPlayWhenReady() && state != Player.STATE_IDLE && state != Player.STATE_ENDED;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return (int) player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        long duration = player.getDuration();
+        return duration == C.TIME_UNSET ? 0 : (int) duration;
+    }
+
+    @Override
+    public void release() {
+        player.removeListener(this);
+        player.release();
+    }
+
+    /**
+     * Makes progressive sources (songs are local files) whose extractors are told the item's MIME
+     * type as its Content-Type. Runs on ExoPlayer's playback thread.
+     */
+    @OptIn(markerClass = UnstableApi.class)
+    private static final class TypedMediaSourceFactory implements MediaSource.Factory {
+
+        private final DataSource.Factory dataSourceFactory;
+        private final DefaultExtractorsFactory defaultExtractorsFactory = new DefaultExtractorsFactory();
+        private DrmSessionManagerProvider drmSessionManagerProvider;
+        private LoadErrorHandlingPolicy loadErrorHandlingPolicy;
+
+        TypedMediaSourceFactory(Context context) {
+            dataSourceFactory = new DefaultDataSource.Factory(context);
+        }
+
+        @Override
+        public MediaSource.Factory setDrmSessionManagerProvider(@NonNull DrmSessionManagerProvider provider) {
+            drmSessionManagerProvider = provider;
+            return this;
+        }
+
+        @Override
+        public MediaSource.Factory setLoadErrorHandlingPolicy(@NonNull LoadErrorHandlingPolicy policy) {
+            loadErrorHandlingPolicy = policy;
+            return this;
+        }
+
+        @NonNull
+        @Override
+        public int[] getSupportedTypes() {
+            return new int[] {C.CONTENT_TYPE_OTHER};
+        }
+
+        @NonNull
+        @Override
+        public MediaSource createMediaSource(@NonNull MediaItem mediaItem) {
+            String mimeType = mediaItem.localConfiguration != null ? mediaItem.localConfiguration.mimeType : null;
+            ProgressiveMediaSource.Factory factory =
+                    new ProgressiveMediaSource.Factory(dataSourceFactory, extractorsFactory(mimeType));
+            if (drmSessionManagerProvider != null) {
+                factory.setDrmSessionManagerProvider(drmSessionManagerProvider);
+            }
+            if (loadErrorHandlingPolicy != null) {
+                factory.setLoadErrorHandlingPolicy(loadErrorHandlingPolicy);
+            }
+            return factory.createMediaSource(mediaItem);
+        }
+
+        private ExtractorsFactory extractorsFactory(String mimeType) {
+            if (mimeType == null) {
+                return defaultExtractorsFactory;
+            }
+            return new ExtractorsFactory() {
+                @Override
+                public Extractor[] createExtractors() {
+                    return defaultExtractorsFactory.createExtractors();
+                }
+
+                @Override
+                public Extractor[] createExtractors(Uri uri, Map<String, List<String>> responseHeaders) {
+                    if (responseHeaders.isEmpty()) {
+                        responseHeaders = Collections.singletonMap("Content-Type",
+                                Collections.singletonList(mimeType));
+                    }
+                    return defaultExtractorsFactory.createExtractors(uri, responseHeaders);
+                }
+            };
+        }
+    }
+}
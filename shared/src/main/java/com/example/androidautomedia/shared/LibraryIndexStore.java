@@ -0,0 +1,131 @@
+package com.example.androidautomedia.shared;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps a compact binary copy of the library on disk so a cold start can show songs without
+ * walking MediaStore first. The file is keyed by MediaStore _ID and records DATE_MODIFIED and
+ * GENERATION_MODIFIED for every row, which is what the loader needs to reconcile it afterwards.
+ * Collation keys are not stored since they depend on the locale; they are recomputed on read.
+ * <p>
+ * Reads and writes happen on the loader thread. Writes go through {@link AtomicFile}, so a crash
+ * mid-write leaves the previous index in place.
+ */
+final class LibraryIndexStore {
+
+    private static final String TAG = "LibraryIndexStore";
+    private static final String FILE_NAME = "library_index.bin";
+    private static final int MAGIC = 0x4c494458; // "LIDX"
+    private static final int FORMAT_VERSION = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Magic, version and count, then per song six longs, the track and a null flag per string
+    private static final int HEADER_SIZE = 3 * 4;
+    private static final int MIN_SONG_SIZE = 6 * 8 + 4 + 6;
+    private static final int MAX_SONGS = 1 << 20;
+
+    private final AtomicFile file;
+
+    LibraryIndexStore(File filesDir) {
+        file = new AtomicFile(new File(filesDir, FILE_NAME));
+    }
+
+    /**
+     * Returns the persisted library in the order it was written, or null if there is no usable
+     * index (first run, unknown format or a corrupt file).
+     */
+    SongColumns read() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead(), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.d(TAG, "Ignoring index with unknown format");
+                return null;
+            }
+            int count = in.readInt();
+            // A truncated or corrupt file must not size the builder
+            if (count < 0 || count > MAX_SONGS
+                    || count > (file.getBaseFile().length() - HEADER_SIZE) / MIN_SONG_SIZE) {
+                Log.e(TAG, "Ignoring index with bad song count " + count);
+                return null;
+            }
+            SongColumns.Builder items = new SongColumns.Builder(count);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long albumId = in.readLong();
+                long dateAdded = in.readLong();
+                long dateModified = in.readLong();
+                long generation = in.readLong();
+                long duration = in.readLong();
+                int track = in.readInt();
+                String title = readString(in);
+                String artist = readString(in);
+                String album = readString(in);
+                String genre = readString(in);
+                String folder = readString(in);
+                String mimeType = readString(in);
+                items.add(id, title, artist, album, albumId, genre, folder, dateAdded, dateModified,
+                        generation, duration, track, mimeType);
+            }
+            return items.build();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading library index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    void write(SongColumns songs) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(songs.size());
+            // Straight from the columns; no MediaItem is built
+            for (int i = 0; i < songs.size(); i++) {
+                out.writeLong(songs.id(i));
+                out.writeLong(songs.albumId(i));
+                out.writeLong(songs.dateAdded(i));
+                out.writeLong(songs.dateModified(i));
+                out.writeLong(songs.generation(i));
+                out.writeLong(songs.duration(i));
+                out.writeInt(songs.track(i));
+                writeString(out, songs.title(i));
+                writeString(out, songs.artist(i));
+                writeString(out, songs.album(i));
+                writeString(out, songs.genre(i));
+                writeString(out, songs.folder(i));
+                writeString(out, songs.mimeType(i));
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing library index: " + e.getMessage());
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.toString());
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.example.androidautomedia.shared;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import androidx.media.MediaBrowserServiceCompat.Result;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs everything the browse side of {@link MyMusicService} needs to do off the binder/main
+ * thread: restoring the persisted library index, reconciling it against MediaStore, MediaStore
+ * paging, incremental syncs after MediaStore changes, building the search index and the
+ * conversion of library items into browse results.
+ * <p>
+ * All work goes through one worker thread with a bounded queue, so there is a single writer and
+ * a burst of browse calls cannot pile up unbounded work. Scanned pages are handed back on the main
+ * thread, which stays the only owner of the in-memory library. Browse results are detached by the
+ * caller and completed from the worker; each one is tracked by a subscription key so it can be
+ * cancelled when the client unsubscribes.
+ * <p>
+ * All public methods must be called on the main thread.
+ */
+final class LibraryLoader {
+
+    private static final String TAG = "LibraryLoader";
+    private static final int QUEUE_CAPACITY = 32;
+
+    /** All callbacks are delivered on the main thread. */
+    interface Listener {
+        /** Called for every scanned page; {@code last} ends the scan. */
+        void onLibraryPage(SongColumns page, boolean last);
+
+        /**
+         * Called instead of a last page when a page could not be read. The pages delivered so far
+         * are not the whole library and must not be persisted as such.
+         */
+        void onLibraryScanFailed();
+
+        /** Called with the library read back from the on-disk index. */
+        void onLibraryRestored(SongColumns items);
+
+        /**
+         * Called when MediaStore has new, changed or removed songs compared to the library.
+         * For incremental syncs {@code storeCount} is the number of songs MediaStore had when the
+         * delta was computed, and a library of a different size after the delta has missed a
+         * change; it is -1 for full reconciles.
+         */
+        void onLibraryDelta(SongColumns upserts, Set<String> removedIds, int storeCount);
+    }
+
+    private final MediaStoreScanner scanner;
+    private final LibraryIndexStore indexStore;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            runnable -> new Thread(runnable, "LibraryLoader"));
+    private final Map<String, List<Future<?>>> browseTasks = new HashMap<>();
+    private final Set<String> pendingDeletedIds = new HashSet<>();
+    private volatile boolean scanCancelled;
+    private boolean loading;
+    private boolean syncAfterLoad;
+    // Highest GENERATION_MODIFIED / DATE_MODIFIED seen so far and the last MediaStore generation
+    // synced against; only touched on the worker thread
+    private long maxGeneration;
+    private long maxDateModified;
+    private long syncedStoreGeneration = -1;
+
+    LibraryLoader(MediaStoreScanner scanner, LibraryIndexStore indexStore, Listener listener) {
+        this.scanner = scanner;
+        this.indexStore = indexStore;
+        this.listener = listener;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Loads the library: from the on-disk index when there is one, followed by a reconcile against
+     * MediaStore, otherwise with a full paged scan.
+     */
+    void load() {
+        if (loading) {
+            return;
+        }
+        loading = true;
+        scanCancelled = false;
+        try {
+            executor.execute(() -> {
+                SongColumns items;
+                try {
+                    syncedStoreGeneration = scanner.currentGeneration();
+                    items = indexStore.read();
+                } catch (RuntimeException e) {
+                    // E.g. a SecurityException without storage permission; end the load so a
+                    // later one can try again
+                    Log.e(TAG, "Library load failed: " + e.getMessage());
+                    failScan();
+                    return;
+                }
+                if (items == null) {
+                    scanPage(0);
+                    return;
+                }
+                advanceWatermarks(items);
+                mainHandler.post(() -> {
+                    listener.onLibraryRestored(items);
+                    finishLoad();
+                });
+                reconcileNow(items);
+            });
+        } catch (RejectedExecutionException e) {
+            // Not loading after all, so a later load or a waiting sync can still run
+            Log.e(TAG, "Library load rejected: " + e.getMessage());
+            finishLoad();
+        }
+    }
+
+    private void finishLoad() {
+        loading = false;
+        if (syncAfterLoad) {
+            syncAfterLoad = false;
+            submitSync();
+        }
+    }
+
+    /**
+     * Brings the library up to date after MediaStore reported a change. Only rows whose generation
+     * (or modification time before Android 11) is past the last one seen are read; deletions come
+     * from the observer. If a load is running the sync waits for it, since the load will see most
+     * of the change anyway and the rest is picked up afterwards.
+     */
+    void syncChanges(Set<String> deletedIds) {
+        pendingDeletedIds.addAll(deletedIds);
+        if (loading) {
+            syncAfterLoad = true;
+            return;
+        }
+        submitSync();
+    }
+
+    private void submitSync() {
+        Set<String> deletedIds = new HashSet<>(pendingDeletedIds);
+        pendingDeletedIds.clear();
+        try {
+            executor.execute(() -> syncNow(deletedIds));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Library sync rejected: " + e.getMessage());
+            pendingDeletedIds.addAll(deletedIds);
+        }
+    }
+
+    private void syncNow(Set<String> deletedIds) {
+        long storeGeneration = scanner.currentGeneration();
+        if (storeGeneration != -1 && storeGeneration == syncedStoreGeneration && deletedIds.isEmpty()) {
+            return;
+        }
+        SongColumns upserts = scanner.queryChangedSince(maxGeneration, maxDateModified);
+        int storeCount = scanner.queryCount();
+        syncedStoreGeneration = storeGeneration;
+        advanceWatermarks(upserts);
+        Log.d(TAG, "Synced changes: " + upserts.size() + " changed, " + deletedIds.size() + " removed");
+        mainHandler.post(() -> listener.onLibraryDelta(upserts, deletedIds, storeCount));
+    }
+
+    /**
+     * Compares {@code items} with MediaStore the slow way, by listing every id. Used when an
+     * incremental sync has evidently missed something (e.g. deletions on Android 10 and older).
+     */
+    void reconcile(SongColumns items) {
+        try {
+            executor.execute(() -> reconcileNow(items));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Library reconcile rejected: " + e.getMessage());
+        }
+    }
+
+    private void advanceWatermarks(SongColumns items) {
+        for (int i = 0; i < items.size(); i++) {
+            maxGeneration = Math.max(maxGeneration, items.generation(i));
+            maxDateModified = Math.max(maxDateModified, items.dateModified(i));
+        }
+    }
+
+    /**
+     * Compares the restored library with MediaStore using only ids and modification times, then
+     * fetches full rows just for what is new or changed.
+     */
+    private void reconcileNow(SongColumns items) {
+        MediaStoreScanner.Versions versions = scanner.queryVersions();
+        if (versions == null || scanCancelled) {
+            return;
+        }
+        Map<Long, Long> known = new HashMap<>(items.size() * 2);
+        for (int i = 0; i < items.size(); i++) {
+            known.put(items.id(i), items.dateModified(i));
+        }
+        long[] changed = new long[versions.size];
+        int changedCount = 0;
+        for (int i = 0; i < versions.size; i++) {
+            Long dateModified = known.remove(versions.ids[i]);
+            if (dateModified == null || dateModified != versions.dateModified[i]) {
+                changed[changedCount++] = versions.ids[i];
+            }
+        }
+        Set<String> removedIds = new HashSet<>();
+        for (Long id : known.keySet()) {
+            removedIds.add(String.valueOf(id));
+        }
+        if (changedCount == 0 && removedIds.isEmpty()) {
+            return;
+        }
+        SongColumns upserts = changedCount > 0
+                ? scanner.queryByIds(changed, changedCount)
+                : SongColumns.EMPTY;
+        advanceWatermarks(upserts);
+        Log.d(TAG, "Reconciled index: " + upserts.size() + " changed, " + removedIds.size() + " removed");
+        mainHandler.post(() -> listener.onLibraryDelta(upserts, removedIds, -1));
+    }
+
+    /** Writes the library to the on-disk index. */
+    void persist(SongColumns songs) {
+        try {
+            executor.execute(() -> indexStore.write(songs));
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Persisting library index rejected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds a {@link SearchIndex} over {@code songs} and hands it to {@code callback} on the main
+     * thread.
+     */
+    void buildSearchIndex(SongColumns songs, Consumer<SearchIndex> callback) {
+        try {
+            executor.execute(() -> {
+                SearchIndex searchIndex = SearchIndex.build(songs);
+                mainHandler.post(() -> callback.accept(searchIndex));
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Building search index rejected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Groups {@code songs} for the browse tree with {@code grouping} and hands the result to
+     * {@code callback} on the main thread.
+     */
+    void buildBrowseGroups(SongColumns songs, Function<SongColumns, BrowseTree.Groups> grouping,
+                           Consumer<BrowseTree.Groups> callback) {
+        try {
+            executor.execute(() -> {
+                BrowseTree.Groups groups = grouping.apply(songs);
+                mainHandler.post(() -> callback.accept(groups));
+            });
+        } catch (RejectedExecutionException e) {
+            // Browsers are waiting for it; group here rather than not at all
+            Log.e(TAG, "Grouping library for browsing rejected: " + e.getMessage());
+            callback.accept(grouping.apply(songs));
+        }
+    }
+
+    /**
+     * Each page is its own task, so browse requests that arrive mid-scan are served between pages
+     * instead of after the whole scan.
+     */
+    private void submitPage(int offset) {
+        Runnable task = () -> scanPage(offset);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (!executor.isShutdown()) {
+                // Queue is full of browse work; keep the scan going on the worker itself
+                task.run();
+            }
+        }
+    }
+
+    private void scanPage(int offset) {
+        SongColumns page;
+        try {
+            page = scanner.queryPage(offset, MediaStoreScanner.PAGE_SIZE);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Library scan failed at offset " + offset + ": " + e.getMessage());
+            page = null;
+        }
+        if (page == null) {
+            // Ending here would look like a short library; stop without an index, so the next
+            // load scans again
+            failScan();
+            return;
+        }
+        advanceWatermarks(page);
+        boolean last = page.size() < MediaStoreScanner.PAGE_SIZE || scanCancelled;
+        if (last) {
+            mainHandler.post(() -> {
+                listener.onLibraryPage(page, true);
+                finishLoad();
+            });
+        } else {
+            mainHandler.post(() -> listener.onLibraryPage(page, false));
+            submitPage(offset + page.size());
+        }
+    }
+
+    /** Ends the load without a last page; also where an unexpected failure on the worker ends up. */
+    private void failScan() {
+        mainHandler.post(() -> {
+            listener.onLibraryScanFailed();
+            finishLoad();
+        });
+    }
+
+    /**
+     * Converts {@code items} on the worker thread and sends them to the already detached
+     * {@code result}. {@code items} must not be modified afterwards.
+     */
+    void loadChildren(String subscriptionKey,
+                      SongColumns items,
+                      Function<SongColumns, List<MediaBrowserCompat.MediaItem>> converter,
+                      Result<List<MediaBrowserCompat.MediaItem>> result) {
+        FutureTask<Void> task = new FutureTask<Void>(() -> result.sendResult(converter.apply(items)), null) {
+            @Override
+            protected void done() {
+                mainHandler.post(() -> removeBrowseTask(subscriptionKey, this));
+            }
+        };
+        List<Future<?>> tasks = browseTasks.get(subscriptionKey);
+        if (tasks == null) {
+            tasks = new ArrayList<>();
+            browseTasks.put(subscriptionKey, tasks);
+        }
+        tasks.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Browse request for " + subscriptionKey + " rejected: " + e.getMessage());
+            removeBrowseTask(subscriptionKey, task);
+            // A null result tells the client the load failed rather than leaving it waiting
+            result.sendResult(null);
+        }
+    }
+
+    private void removeBrowseTask(String subscriptionKey, Future<?> task) {
+        List<Future<?>> tasks = browseTasks.get(subscriptionKey);
+        if (tasks != null) {
+            tasks.remove(task);
+            if (tasks.isEmpty()) {
+                browseTasks.remove(subscriptionKey);
+            }
+        }
+    }
+
+    /** Drops pending browse work for a subscription whose client has gone away. */
+    void cancel(String subscriptionKey) {
+        List<Future<?>> tasks = browseTasks.remove(subscriptionKey);
+        if (tasks != null) {
+            for (Future<?> task : tasks) {
+                task.cancel(false);
+                executor.remove((Runnable) task);
+            }
+        }
+    }
+
+    void shutdown() {
+        scanCancelled = true;
+        browseTasks.clear();
+        executor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+}
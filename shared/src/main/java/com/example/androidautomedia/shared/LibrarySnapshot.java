@@ -0,0 +1,68 @@
+package com.example.androidautomedia.shared;
+
+/**
+ * The song list of {@link MyMusicService} in title order, for UIs running in the service's own
+ * process. They read it straight from {@link MyMusicService#getLibrarySnapshot()} instead of
+ * subscribing through the browser, which would parcel every song into a new MediaItem per client.
+ * <p>
+ * It shares the library's columns ({@link SongColumns}) rather than holding an object per song,
+ * and is immutable: every library change publishes a new snapshot with a higher
+ * {@link #getVersion() version}, so a reader can hold on to one from any thread and compare
+ * versions to see whether it is current.
+ */
+public final class LibrarySnapshot {
+
+    public static final LibrarySnapshot EMPTY = new LibrarySnapshot(SongColumns.EMPTY, 0);
+
+    private final SongColumns songs;
+    private final long version;
+
+    LibrarySnapshot(SongColumns songs, long version) {
+        this.songs = songs;
+        this.version = version;
+    }
+
+    /** Increases with every library change; 0 is {@link #EMPTY}. */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return songs.size();
+    }
+
+    /** The MediaStore _ID of the song at {@code position}; its media id is the same in decimal. */
+    public long getId(int position) {
+        return songs.id(position);
+    }
+
+    public String getMediaId(int position) {
+        return Long.toString(songs.id(position));
+    }
+
+    /** Builds a new string per call; see {@link #hasSameTitle} for comparisons. */
+    public String getTitle(int position) {
+        return nonNull(songs.title(position));
+    }
+
+    /** Compares titles without building either. */
+    public boolean hasSameTitle(int position, LibrarySnapshot other, int otherPosition) {
+        return songs.titleEquals(position, other.songs, otherPosition);
+    }
+
+    public String getArtist(int position) {
+        return nonNull(songs.artist(position));
+    }
+
+    public String getAlbum(int position) {
+        return nonNull(songs.album(position));
+    }
+
+    public long getAlbumId(int position) {
+        return songs.albumId(position);
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.androidautomedia.shared;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * {@link Playback} on the platform {@link MediaPlayer}, gapless when the next song is known in
+ * advance.
+ * <p>
+ * Songs are prepared with {@link MediaPlayer#prepareAsync()}, so opening a file and parsing its
+ * headers never blocks the caller. While one song is preparing, further {@link #load} requests are
+ * parked and only the latest is prepared afterwards: a burst of skips costs at most two prepares,
+ * not one per press.
+ * <p>
+ * Besides the playing player a second one is kept. {@link #setNext} prepares the following song
+ * on it in the background and chains it with {@link MediaPlayer#setNextMediaPlayer}, so the
+ * framework starts it the moment the current song ends, without a reset/prepare in between. The
+ * two players then swap roles.
+ * <p>
+ * MediaPlayer has no way to be told a file's type; it always sniffs the content, so MIME types
+ * passed in are not used.
+ * <p>
+ * Only the main thread touches it.
+ */
+final class MediaPlayerPlayback implements Playback {
+
+    private static final String TAG = "MediaPlayerPlayback";
+
+    private final Context context;
+    private final AudioAttributes audioAttributes;
+    private final Callback callback;
+    private MediaPlayer currentPlayer;
+    private MediaPlayer nextPlayer;
+    private String currentMediaId;
+    private boolean preparing;
+    // Whether the current player holds a prepared song, i.e. may be started, paused or queried
+    private boolean prepared;
+    private boolean playWhenReady;
+    // Latest song asked for while another was preparing
+    private String pendingMediaId;
+    private Uri pendingUri;
+    private String nextMediaId;
+    private boolean nextPrepared;
+    // Tells a stale prepareAsync completion from the one for the current next song
+    private int nextRequest;
+
+    MediaPlayerPlayback(Context context, AudioAttributes audioAttributes, Callback callback) {
+        this.context = context;
+        this.audioAttributes = audioAttributes;
+        this.callback = callback;
+        currentPlayer = createPlayer();
+        nextPlayer = createPlayer();
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setOnCompletionListener(this::onPlayerCompletion);
+        player.setOnErrorListener(this::onPlayerError);
+        return player;
+    }
+
+    @Override
+    public void load(String mediaId, Uri uri, String mimeType) {
+        clearNext();
+        playWhenReady = true;
+        if (preparing) {
+            pendingMediaId = mediaId;
+            pendingUri = uri;
+            return;
+        }
+        prepareCurrent(mediaId, uri);
+    }
+
+    private void prepareCurrent(String mediaId, Uri uri) {
+        currentMediaId = mediaId;
+        preparing = true;
+        prepared = false;
+        try {
+            currentPlayer.reset();
+            currentPlayer.setAudioAttributes(audioAttributes);
+            currentPlayer.setDataSource(context, uri);
+            currentPlayer.setOnPreparedListener(this::onCurrentPrepared);
+            currentPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error preparing media " + mediaId + ": " + e.getMessage());
+            preparing = false;
+            callback.onError(mediaId);
+            preparePending();
+        }
+    }
+
+    private void onCurrentPrepared(MediaPlayer player) {
+        if (player != currentPlayer || !preparing) {
+            return;
+        }
+        preparing = false;
+        prepared = true;
+        if (preparePending()) {
+            // Superseded while preparing; this song is never started
+            return;
+        }
+        if (playWhenReady) {
+            currentPlayer.start();
+        }
+        callback.onPrepared(currentMediaId);
+    }
+
+    private boolean preparePending() {
+        if (pendingMediaId == null) {
+            return false;
+        }
+        String mediaId = pendingMediaId;
+        Uri uri = pendingUri;
+        pendingMediaId = null;
+        pendingUri = null;
+        prepareCurrent(mediaId, uri);
+        return true;
+    }
+
+    @Override
+    public void setNext(String mediaId, Uri uri, String mimeType) {
+        if (preparing || mediaId.equals(nextMediaId)) {
+            return;
+        }
+        clearNext();
+        nextMediaId = mediaId;
+        int request = ++nextRequest;
+        try {
+            nextPlayer.setAudioAttributes(audioAttributes);
+            nextPlayer.setDataSource(context, uri);
+            nextPlayer.setOnPreparedListener(player -> {
+                if (request == nextRequest) {
+                    currentPlayer.setNextMediaPlayer(player);
+                    nextPrepared = true;
+                }
+            });
+            nextPlayer.prepareAsync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error preparing next media: " + e.getMessage());
+            clearNext();
+        }
+    }
+
+    @Override
+    public void clearNext() {
+        if (nextMediaId == null) {
+            return;
+        }
+        if (nextPrepared) {
+            currentPlayer.setNextMediaPlayer(null);
+        }
+        nextRequest++;
+        nextPlayer.reset();
+        nextMediaId = null;
+        nextPrepared = false;
+    }
+
+    private void onPlayerCompletion(MediaPlayer player) {
+        if (player != currentPlayer) {
+            return;
+        }
+        if (!nextPrepared) {
+            callback.onCompletion();
+            return;
+        }
+        // The framework has already started the next player; swap roles
+        currentMediaId = nextMediaId;
+        currentPlayer = nextPlayer;
+        nextPlayer = player;
+        nextPlayer.reset();
+        nextMediaId = null;
+        nextPrepared = false;
+        callback.onNextTrackStarted(currentMediaId);
+    }
+
+    private boolean onPlayerError(MediaPlayer player, int what, int extra) {
+        Log.e(TAG, "MediaPlayer error " + what + "/" + extra);
+        if (player == nextPlayer) {
+            // Not fatal: the current song just ends without a gapless handoff
+            clearNext();
+        } else if (player == currentPlayer) {
+            preparing = false;
+            prepared = false;
+            player.reset();
+            callback.onError(currentMediaId);
+            preparePending();
+        }
+        // Handled; otherwise MediaPlayer would also report completion
+        return true;
+    }
+
+    @Override
+    public boolean isPreparing() {
+        return preparing;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    @Override
+    public void start() {
+        if (preparing) {
+            playWhenReady = true;
+        } else if (prepared) {
+            currentPlayer.start();
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (preparing) {
+            playWhenReady = false;
+        } else if (prepared) {
+            currentPlayer.pause();
+        }
+    }
+
+    @Override
+    public void stop() {
+        clearNext();
+        pendingMediaId = null;
+        pendingUri = null;
+        if (prepared) {
+            currentPlayer.stop();
+        }
+        preparing = false;
+        prepared = false;
+        currentPlayer.reset();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        if (prepared) {
+            currentPlayer.seekTo(position);
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return prepared && currentPlayer.isPlaying();
+    }
+
+    @Override
+    public boolean isPlayWhenReady() {
+        return preparing ? playWhenReady : isPlaying();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return prepared ? currentPlayer.getCurrentPosition() : 0;
+    }
+
+    @Override
+    public int getDuration() {
+        return prepared ? currentPlayer.getDuration() : 0;
+    }
+
+    @Override
+    public void release() {
+        currentPlayer.release();
+        nextPlayer.release();
+    }
+}
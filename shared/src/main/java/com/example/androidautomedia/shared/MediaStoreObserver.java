@@ -0,0 +1,80 @@
+package com.example.androidautomedia.shared;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Watches {@link MediaStore.Audio.Media#EXTERNAL_CONTENT_URI} and reports batched changes, so a
+ * burst of notifications (an album being downloaded) turns into one incremental sync.
+ * <p>
+ * On Android 11+ MediaStore says which rows were deleted; those ids are collected and handed over
+ * with the change, because deleted rows cannot be found by querying for them afterwards.
+ */
+final class MediaStoreObserver extends ContentObserver {
+
+    private static final long DEBOUNCE_MS = 500;
+
+    interface Listener {
+        /** Called on the observer's handler thread once notifications have settled. */
+        void onMediaStoreChanged(Set<String> deletedIds);
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private final Set<String> deletedIds = new HashSet<>();
+    private final Runnable dispatchChange = this::dispatchChange;
+
+    MediaStoreObserver(Handler handler, Listener listener) {
+        super(handler);
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    void register(ContentResolver contentResolver) {
+        contentResolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, this);
+    }
+
+    void unregister(ContentResolver contentResolver) {
+        contentResolver.unregisterContentObserver(this);
+        handler.removeCallbacks(dispatchChange);
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        scheduleDispatch();
+    }
+
+    @Override
+    public void onChange(boolean selfChange, @NonNull Collection<Uri> uris, int flags) {
+        if ((flags & ContentResolver.NOTIFY_DELETE) != 0) {
+            for (Uri uri : uris) {
+                String id = uri.getLastPathSegment();
+                if (!TextUtils.isEmpty(id) && TextUtils.isDigitsOnly(id)) {
+                    deletedIds.add(id);
+                }
+            }
+        }
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        handler.removeCallbacks(dispatchChange);
+        handler.postDelayed(dispatchChange, DEBOUNCE_MS);
+    }
+
+    private void dispatchChange() {
+        Set<String> deleted = new HashSet<>(deletedIds);
+        deletedIds.clear();
+        listener.onMediaStoreChanged(deleted);
+    }
+}
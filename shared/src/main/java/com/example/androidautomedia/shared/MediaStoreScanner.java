@@ -0,0 +1,353 @@
+package com.example.androidautomedia.shared;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.MediaMetadata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the device's music library from {@link MediaStore} one page at a time, so the first
+ * rows can be shown before the whole cursor has been walked.
+ * <p>
+ * Pages are ordered by title (then by id, so that LIMIT/OFFSET paging is stable). That is close to
+ * the collation order the library sorts by, so merging pages into it is cheap.
+ */
+final class MediaStoreScanner {
+
+    private static final String TAG = "MediaStoreScanner";
+    static final int PAGE_SIZE = 500;
+
+    // MediaStore facts kept on every MediaItem so the library can be persisted and reconciled
+    static final String EXTRA_ALBUM_ID = "album_id";
+    static final String EXTRA_DATE_ADDED = "date_added";
+    static final String EXTRA_DATE_MODIFIED = "date_modified";
+    static final String EXTRA_GENERATION_MODIFIED = "generation_modified";
+    // Known without preparing a player: ms, MediaStore's disc * 1000 + track, and e.g. "audio/flac"
+    static final String EXTRA_DURATION = "duration";
+    static final String EXTRA_TRACK = "track";
+    static final String EXTRA_MIME_TYPE = "mime_type";
+    // Browse grouping; empty when MediaStore does not know
+    static final String EXTRA_GENRE = "genre";
+    static final String EXTRA_FOLDER = "folder";
+    // Collation keys (see SortKeys), computed on the loader thread rather than when sorting
+    static final String EXTRA_TITLE_KEY = "title_key";
+    static final String EXTRA_ARTIST_KEY = "artist_key";
+    static final String EXTRA_ALBUM_KEY = "album_key";
+
+    private static final Uri AUDIO_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+    private static final String[] PROJECTION = buildProjection();
+    private static final String[] VERSION_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+    private static final String SELECTION = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+    private static final String SORT_ORDER = MediaStore.Audio.Media.TITLE + " COLLATE NOCASE ASC, "
+            + MediaStore.Audio.Media._ID + " ASC";
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+
+    /** Columns available on this release; GENRE needs Android 11, RELATIVE_PATH Android 10. */
+    @SuppressWarnings("deprecation")
+    private static String[] buildProjection() {
+        List<String> columns = new ArrayList<>(Arrays.asList(
+                MediaStore.Audio.Media._ID,
+                MediaStore.Audio.Media.TITLE,
+                MediaStore.Audio.Media.ARTIST,
+                MediaStore.Audio.Media.ALBUM,
+                MediaStore.Audio.Media.ALBUM_ID,
+                MediaStore.Audio.Media.DATE_ADDED,
+                MediaStore.Audio.Media.DATE_MODIFIED,
+                MediaStore.Audio.Media.DURATION,
+                MediaStore.Audio.Media.TRACK,
+                MediaStore.Audio.Media.MIME_TYPE));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            columns.add(MediaStore.Audio.Media.GENERATION_MODIFIED);
+            columns.add(MediaStore.Audio.Media.GENRE);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            columns.add(MediaStore.Audio.Media.RELATIVE_PATH);
+        } else {
+            columns.add(MediaStore.Audio.Media.DATA);
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    MediaStoreScanner(Context context) {
+        this.context = context;
+        this.contentResolver = context.getContentResolver();
+    }
+
+    /**
+     * Queries a single page of songs. Android 11+ honours {@link ContentResolver#QUERY_ARG_LIMIT}
+     * and {@link ContentResolver#QUERY_ARG_OFFSET}; older MediaProvider versions only understand
+     * the "limit" query parameter on the uri. Returns null if the page could not be read, which is
+     * not the same as an empty page past the end.
+     */
+    SongColumns queryPage(int offset, int limit) {
+        SongColumns.Builder page = new SongColumns.Builder(limit);
+        Cursor cursor;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bundle queryArgs = new Bundle();
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, SELECTION);
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, SORT_ORDER);
+                queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+                queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+                cursor = contentResolver.query(AUDIO_URI, PROJECTION, queryArgs, null);
+            } else {
+                Uri pagedUri = AUDIO_URI.buildUpon()
+                        .appendQueryParameter("limit", offset + "," + limit)
+                        .build();
+                cursor = contentResolver.query(pagedUri, PROJECTION, SELECTION, null, SORT_ORDER);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying songs at offset " + offset + ": " + e.getMessage());
+            return null;
+        }
+        if (cursor == null) {
+            Log.e(TAG, "No cursor for songs at offset " + offset);
+            return null;
+        }
+        try {
+            readRows(cursor, page);
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading songs from device: " + e.getMessage());
+            return null;
+        } finally {
+            cursor.close();
+        }
+        return page.build();
+    }
+
+    /**
+     * Fetches full rows for the given ids, used to refresh only the songs that changed since the
+     * library was last persisted. Ids are queried in chunks to stay under SQLite's variable limit.
+     */
+    SongColumns queryByIds(long[] ids, int count) {
+        SongColumns.Builder items = new SongColumns.Builder(count);
+        for (int from = 0; from < count; from += PAGE_SIZE) {
+            int to = Math.min(count, from + PAGE_SIZE);
+            StringBuilder selection = new StringBuilder(SELECTION)
+                    .append(" AND ").append(MediaStore.Audio.Media._ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+            try (Cursor cursor = contentResolver.query(AUDIO_URI, PROJECTION, selection.toString(), null, SORT_ORDER)) {
+                if (cursor != null) {
+                    readRows(cursor, items);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading changed songs: " + e.getMessage());
+            }
+        }
+        return items.build();
+    }
+
+    /**
+     * Lists the id and modification time of every song. This is a two-column walk of the table and
+     * is much cheaper than a full scan, so it is used to find out what changed since the last run.
+     */
+    Versions queryVersions() {
+        Versions versions = new Versions();
+        try (Cursor cursor = contentResolver.query(AUDIO_URI, VERSION_PROJECTION, SELECTION, null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            versions.ids = new long[cursor.getCount()];
+            versions.dateModified = new long[cursor.getCount()];
+            while (cursor.moveToNext() && versions.size < versions.ids.length) {
+                versions.ids[versions.size] = cursor.getLong(0);
+                versions.dateModified[versions.size] = cursor.getLong(1);
+                versions.size++;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error listing song versions: " + e.getMessage());
+            return null;
+        }
+        return versions;
+    }
+
+    /**
+     * Returns MediaStore's current generation for the primary external volume, or -1 before
+     * Android 11 where generations do not exist.
+     */
+    long currentGeneration() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        }
+        return -1;
+    }
+
+    /**
+     * Fetches rows added or modified after the given watermark: GENERATION_MODIFIED on Android 11+,
+     * DATE_MODIFIED (in seconds, so the boundary second is read again) before that.
+     */
+    SongColumns queryChangedSince(long generation, long dateModified) {
+        String selection;
+        long since;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            selection = SELECTION + " AND " + MediaStore.Audio.Media.GENERATION_MODIFIED + " > ?";
+            since = generation;
+        } else {
+            selection = SELECTION + " AND " + MediaStore.Audio.Media.DATE_MODIFIED + " >= ?";
+            since = dateModified;
+        }
+        SongColumns.Builder items = new SongColumns.Builder(16);
+        try (Cursor cursor = contentResolver.query(AUDIO_URI, PROJECTION, selection,
+                new String[]{String.valueOf(since)}, SORT_ORDER)) {
+            if (cursor != null) {
+                readRows(cursor, items);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading changed songs: " + e.getMessage());
+        }
+        return items.build();
+    }
+
+    /** Returns the number of songs in MediaStore, or -1 if it could not be queried. */
+    int queryCount() {
+        try (Cursor cursor = contentResolver.query(AUDIO_URI, new String[]{MediaStore.Audio.Media._ID},
+                SELECTION, null, null)) {
+            return cursor != null ? cursor.getCount() : -1;
+        } catch (Exception e) {
+            Log.e(TAG, "Error counting songs: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    static final class Versions {
+        long[] ids;
+        long[] dateModified;
+        int size;
+    }
+
+    private static void readRows(Cursor cursor, SongColumns.Builder out) {
+        new RowReader(cursor).readAll(out);
+    }
+
+    /**
+     * Reads songs off a cursor over {@link #PROJECTION} in one pass, straight into columns. Column
+     * indices are looked up once per cursor rather than once per field and row; columns this
+     * release does not have are -1 and read as null. No MediaItem or boxed value is made per row.
+     */
+    private static final class RowReader {
+
+        private final Cursor cursor;
+        private final int idColumn;
+        private final int titleColumn;
+        private final int artistColumn;
+        private final int albumColumn;
+        private final int albumIdColumn;
+        private final int dateAddedColumn;
+        private final int dateModifiedColumn;
+        private final int durationColumn;
+        private final int trackColumn;
+        private final int mimeTypeColumn;
+        private final int generationColumn;
+        private final int genreColumn;
+        private final int relativePathColumn;
+        private final int dataColumn;
+
+        @SuppressWarnings("deprecation")
+        RowReader(Cursor cursor) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            titleColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+            artistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            albumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+            albumIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+            dateAddedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED);
+            dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+            durationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+            trackColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TRACK);
+            mimeTypeColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.MIME_TYPE);
+            generationColumn = cursor.getColumnIndex(MediaStore.Audio.Media.GENERATION_MODIFIED);
+            genreColumn = cursor.getColumnIndex(MediaStore.Audio.Media.GENRE);
+            relativePathColumn = cursor.getColumnIndex(MediaStore.Audio.Media.RELATIVE_PATH);
+            dataColumn = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+        }
+
+        void readAll(SongColumns.Builder out) {
+            while (cursor.moveToNext()) {
+                String folder;
+                if (relativePathColumn >= 0) {
+                    folder = trimFolder(cursor.getString(relativePathColumn));
+                } else {
+                    String data = getString(dataColumn);
+                    folder = data != null && data.lastIndexOf('/') > 0 ? data.substring(0, data.lastIndexOf('/')) : null;
+                }
+                out.add(cursor.getLong(idColumn), cursor.getString(titleColumn),
+                        cursor.getString(artistColumn), cursor.getString(albumColumn),
+                        cursor.getLong(albumIdColumn), getString(genreColumn), folder,
+                        cursor.getLong(dateAddedColumn), cursor.getLong(dateModifiedColumn),
+                        generationColumn >= 0 ? cursor.getLong(generationColumn) : 0,
+                        cursor.getLong(durationColumn), cursor.getInt(trackColumn),
+                        cursor.getString(mimeTypeColumn));
+            }
+        }
+
+        private String getString(int column) {
+            return column >= 0 ? cursor.getString(column) : null;
+        }
+    }
+
+    private static String trimFolder(String relativePath) {
+        if (relativePath != null && relativePath.endsWith("/")) {
+            return relativePath.substring(0, relativePath.length() - 1);
+        }
+        return relativePath;
+    }
+
+    static MediaItem buildMediaItem(long id, String title, String artist, String album, long albumId,
+                                    String genre, String folder,
+                                    long dateAdded, long dateModified, long generation,
+                                    long duration, int track, String mimeType,
+                                    byte[] titleKey, byte[] artistKey, byte[] albumKey) {
+        Uri artworkUri = ContentUris.withAppendedId(ALBUM_ART_URI, albumId);
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_ALBUM_ID, albumId);
+        extras.putLong(EXTRA_DATE_ADDED, dateAdded);
+        extras.putLong(EXTRA_DATE_MODIFIED, dateModified);
+        extras.putLong(EXTRA_GENERATION_MODIFIED, generation);
+        extras.putString(EXTRA_GENRE, genre != null ? genre : "");
+        extras.putString(EXTRA_FOLDER, folder != null ? folder : "");
+        extras.putLong(EXTRA_DURATION, duration);
+        extras.putInt(EXTRA_TRACK, track);
+        extras.putString(EXTRA_MIME_TYPE, mimeType);
+        extras.putByteArray(EXTRA_TITLE_KEY, titleKey);
+        extras.putByteArray(EXTRA_ARTIST_KEY, artistKey);
+        extras.putByteArray(EXTRA_ALBUM_KEY, albumKey);
+        return new MediaItem.Builder()
+                .setMediaId(String.valueOf(id))
+                .setUri(Uri.withAppendedPath(AUDIO_URI, String.valueOf(id)))
+                .setMimeType(mimeType)
+                .setMediaMetadata(new MediaMetadata.Builder()
+                        .setTitle(title)
+                        .setArtist(artist)
+                        .setAlbumTitle(album)
+                        .setTrackNumber(track > 0 ? track % 1000 : null)
+                        .setDiscNumber(track >= 1000 ? track / 1000 : null)
+                        .setArtworkUri(artworkUri)
+                        .setExtras(extras)
+                        .build())
+                .build();
+    }
+}
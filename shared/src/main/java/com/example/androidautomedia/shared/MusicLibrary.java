@@ -0,0 +1,615 @@
+package com.example.androidautomedia.shared;
+
+import androidx.collection.LruCache;
+import androidx.media3.common.MediaItem;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The in-memory song list served by {@link MyMusicService}.
+ * <p>
+ * Songs are stored in slots in arrival order and never physically re-sorted. Each sort order is a
+ * permutation of slots ({@link SortedIndex}) compared through collation keys computed when the song
+ * was read, and kept sorted as songs come and go: pages are merged in, single changes are
+ * binary-searched into place. The title order always exists; the album order is built the first
+ * time it is asked for and maintained from then on.
+ * <p>
+ * Slots are columns rather than objects: ids, dates and durations in long arrays, artists, albums,
+ * genres, folders and MIME types as codes into one {@link StringPool}, titles appended to one char
+ * buffer. Songs arrive as {@link SongColumns} and are copied column by column; a {@link MediaItem}
+ * is only built when one is asked for, and the last few are kept, so a large library does not cost
+ * an object graph per song.
+ * <p>
+ * An index from MediaStore _ID to slot makes finding a song constant time. Positions below refer
+ * to title order unless a {@link SortOrder} is given.
+ * <p>
+ * Only the main thread touches it. Background work gets a {@link #snapshot()} instead.
+ */
+final class MusicLibrary {
+
+    enum SortOrder {
+        TITLE,
+        /** By album, then disc and track number; what album nodes are listed in. */
+        ALBUM
+    }
+
+    static final long NO_ALBUM = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+    // Songs recently asked for as MediaItems: the current one, the next, a browse page or two
+    private static final int MATERIALIZED_ITEMS = 512;
+    // Title chars are compacted once this many are no longer referenced, and as many are live
+    private static final int MIN_COMPACTED_CHARS = 64 * 1024;
+
+    // Slot storage, one array per field. Removing a song moves the last slot into its place.
+    private int size;
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] albumIds = new long[INITIAL_CAPACITY];
+    private long[] datesAdded = new long[INITIAL_CAPACITY];
+    private long[] datesModified = new long[INITIAL_CAPACITY];
+    private long[] generations = new long[INITIAL_CAPACITY];
+    private long[] durations = new long[INITIAL_CAPACITY];
+    private int[] tracks = new int[INITIAL_CAPACITY];
+    private int[] titleStarts = new int[INITIAL_CAPACITY];
+    private int[] titleLengths = new int[INITIAL_CAPACITY];
+    private byte[][] titleKeys = new byte[INITIAL_CAPACITY][];
+    private int[] artists = new int[INITIAL_CAPACITY];
+    private int[] albums = new int[INITIAL_CAPACITY];
+    private int[] genres = new int[INITIAL_CAPACITY];
+    private int[] folders = new int[INITIAL_CAPACITY];
+    private int[] mimeTypes = new int[INITIAL_CAPACITY];
+    private final StringPool strings = new StringPool();
+    // Append-only, so snapshots can share it: a new title goes after the others, and compaction
+    // copies the live ones to a new buffer
+    private char[] titleChars = new char[1024];
+    private int titleCharCount;
+    private int deadTitleChars;
+    private final LruCache<Long, MediaItem> materialized = new LruCache<>(MATERIALIZED_ITEMS);
+    private final LongIntMap slotsById = new LongIntMap();
+    private final SortedIndex[] indexes = new SortedIndex[SortOrder.values().length];
+
+    MusicLibrary() {
+        indexes[SortOrder.TITLE.ordinal()] = new SortedIndex(SortOrder.TITLE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    MediaItem get(int position) {
+        return get(SortOrder.TITLE, position);
+    }
+
+    MediaItem get(SortOrder order, int position) {
+        return itemAt(index(order).slots[position]);
+    }
+
+    /** The MediaStore _ID at a position in the given order, without building the song. */
+    long idAt(SortOrder order, int position) {
+        return ids[index(order).slots[position]];
+    }
+
+    /** Whether the song with the given MediaStore _ID is in the library, without building it. */
+    boolean contains(long id) {
+        return slotsById.containsKey(id);
+    }
+
+    /** The album id of the song with the given MediaStore _ID, or {@link #NO_ALBUM}. */
+    long albumIdOf(long id) {
+        int slot = slotsById.get(id);
+        return slot == LongIntMap.NO_VALUE ? NO_ALBUM : albumIds[slot];
+    }
+
+    /** Returns the song with the given MediaStore _ID, or null. */
+    MediaItem find(long id) {
+        int slot = slotsById.get(id);
+        return slot == LongIntMap.NO_VALUE ? null : itemAt(slot);
+    }
+
+    /** Returns the title-order position of the song with the given media id, or -1. */
+    int indexOf(String mediaId) {
+        try {
+            return indexOf(Long.parseLong(mediaId));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the title-order position of the song with the given MediaStore _ID, or -1. */
+    int indexOf(long id) {
+        return indexOf(SortOrder.TITLE, id);
+    }
+
+    int indexOf(SortOrder order, long id) {
+        int slot = slotsById.get(id);
+        return slot == LongIntMap.NO_VALUE ? -1 : index(order).positionOf(slot);
+    }
+
+    /**
+     * Adds a scanned page. Rows that paging returned twice (the table changed between two pages)
+     * are skipped.
+     */
+    void append(SongColumns page) {
+        int[] added = new int[page.size()];
+        int addedCount = 0;
+        for (int i = 0; i < page.size(); i++) {
+            if (!slotsById.containsKey(page.id(i))) {
+                added[addedCount++] = addSlot(page, i);
+            }
+        }
+        insertIntoIndexes(added, addedCount);
+    }
+
+    void replaceAll(SongColumns newItems) {
+        size = 0;
+        titleCharCount = 0;
+        deadTitleChars = 0;
+        // Snapshots may still read the old buffer
+        titleChars = new char[titleChars.length];
+        slotsById.clear();
+        materialized.evictAll();
+        for (SortedIndex index : indexes) {
+            if (index != null) {
+                index.clear();
+            }
+        }
+        append(newItems);
+    }
+
+    /**
+     * Applies a set of changed/new songs and removed ids. Returns true if anything changed.
+     */
+    boolean applyDelta(SongColumns upserts, Set<String> removedIds) {
+        if (upserts.isEmpty() && removedIds.isEmpty()) {
+            return false;
+        }
+        for (String mediaId : removedIds) {
+            int slot = slotsById.get(Long.parseLong(mediaId));
+            if (slot != LongIntMap.NO_VALUE) {
+                removeSlot(slot);
+            }
+        }
+        int[] changed = new int[upserts.size()];
+        int changedCount = 0;
+        for (int i = 0; i < upserts.size(); i++) {
+            int slot = slotsById.get(upserts.id(i));
+            if (slot == LongIntMap.NO_VALUE) {
+                changed[changedCount++] = addSlot(upserts, i);
+            } else {
+                // Take it out while the old keys are still in place, then re-insert
+                for (SortedIndex index : indexes) {
+                    if (index != null) {
+                        index.remove(slot);
+                    }
+                }
+                deadTitleChars += Math.max(0, titleLengths[slot]);
+                materialized.remove(ids[slot]);
+                setSlot(slot, upserts, i);
+                changed[changedCount++] = slot;
+            }
+        }
+        insertIntoIndexes(changed, changedCount);
+        compactTitlesIfNeeded();
+        return true;
+    }
+
+    /** An immutable copy in title order that can be handed to background work. */
+    SongColumns snapshot() {
+        return snapshot(SortOrder.TITLE);
+    }
+
+    SongColumns snapshot(SortOrder order) {
+        return snapshot(order, 0, size());
+    }
+
+    /**
+     * An immutable copy of positions {@code from} (inclusive) to {@code to} (exclusive), clamped
+     * to the library. Costs O(to - from) primitive copies, so a browse page does not copy the
+     * whole library, and the whole library costs no more than a few arrays.
+     */
+    SongColumns snapshot(SortOrder order, int from, int to) {
+        SortedIndex index = index(order);
+        from = Math.max(0, Math.min(from, index.size));
+        to = Math.max(from, Math.min(to, index.size));
+        return snapshotOfSlots(Arrays.copyOfRange(index.slots, from, to), to - from);
+    }
+
+    /**
+     * An immutable copy of the songs with the given MediaStore ids, in that order. Ids not in the
+     * library are skipped.
+     */
+    SongColumns snapshotOf(long[] songIds) {
+        int[] slots = new int[songIds.length];
+        int count = 0;
+        for (long id : songIds) {
+            int slot = slotsById.get(id);
+            if (slot != LongIntMap.NO_VALUE) {
+                slots[count++] = slot;
+            }
+        }
+        return snapshotOfSlots(slots, count);
+    }
+
+    private SongColumns snapshotOfSlots(int[] slots, int count) {
+        long[] snapshotIds = new long[count];
+        long[] snapshotAlbumIds = new long[count];
+        long[] snapshotDatesAdded = new long[count];
+        long[] snapshotDatesModified = new long[count];
+        long[] snapshotGenerations = new long[count];
+        long[] snapshotDurations = new long[count];
+        int[] snapshotTracks = new int[count];
+        int[] snapshotTitleStarts = new int[count];
+        int[] snapshotTitleLengths = new int[count];
+        byte[][] snapshotTitleKeys = new byte[count][];
+        int[] snapshotArtists = new int[count];
+        int[] snapshotAlbums = new int[count];
+        int[] snapshotGenres = new int[count];
+        int[] snapshotFolders = new int[count];
+        int[] snapshotMimeTypes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slots[i];
+            snapshotIds[i] = ids[slot];
+            snapshotAlbumIds[i] = albumIds[slot];
+            snapshotDatesAdded[i] = datesAdded[slot];
+            snapshotDatesModified[i] = datesModified[slot];
+            snapshotGenerations[i] = generations[slot];
+            snapshotDurations[i] = durations[slot];
+            snapshotTracks[i] = tracks[slot];
+            snapshotTitleStarts[i] = titleStarts[slot];
+            snapshotTitleLengths[i] = titleLengths[slot];
+            snapshotTitleKeys[i] = titleKeys[slot];
+            snapshotArtists[i] = artists[slot];
+            snapshotAlbums[i] = albums[slot];
+            snapshotGenres[i] = genres[slot];
+            snapshotFolders[i] = folders[slot];
+            snapshotMimeTypes[i] = mimeTypes[slot];
+        }
+        return new SongColumns(count, snapshotIds, snapshotAlbumIds, snapshotDatesAdded, snapshotDatesModified,
+                snapshotGenerations, snapshotDurations, snapshotTracks, titleChars, snapshotTitleStarts,
+                snapshotTitleLengths, snapshotTitleKeys, snapshotArtists, snapshotAlbums, snapshotGenres,
+                snapshotFolders, snapshotMimeTypes, strings.values(), strings.keys());
+    }
+
+    /** The MediaStore ids of all songs in the given order. */
+    long[] ids(SortOrder order) {
+        SortedIndex index = index(order);
+        long[] orderedIds = new long[index.size];
+        for (int i = 0; i < index.size; i++) {
+            orderedIds[i] = ids[index.slots[i]];
+        }
+        return orderedIds;
+    }
+
+    private SortedIndex index(SortOrder order) {
+        SortedIndex index = indexes[order.ordinal()];
+        if (index == null) {
+            // First use of this order: sort once, maintain incrementally afterwards
+            index = new SortedIndex(order);
+            int[] all = new int[size];
+            for (int slot = 0; slot < all.length; slot++) {
+                all[slot] = slot;
+            }
+            index.insertAll(all, all.length);
+            indexes[order.ordinal()] = index;
+        }
+        return index;
+    }
+
+    private void insertIntoIndexes(int[] newSlots, int count) {
+        if (count == 0) {
+            return;
+        }
+        for (SortedIndex index : indexes) {
+            if (index != null) {
+                index.insertAll(newSlots, count);
+            }
+        }
+    }
+
+    private MediaItem itemAt(int slot) {
+        MediaItem item = materialized.get(ids[slot]);
+        if (item == null) {
+            item = MediaStoreScanner.buildMediaItem(ids[slot], titleOf(slot),
+                    StringPool.get(strings.values(), artists[slot]), StringPool.get(strings.values(), albums[slot]),
+                    albumIds[slot], StringPool.get(strings.values(), genres[slot]),
+                    StringPool.get(strings.values(), folders[slot]), datesAdded[slot], datesModified[slot],
+                    generations[slot], durations[slot], tracks[slot],
+                    StringPool.get(strings.values(), mimeTypes[slot]), titleKeys[slot], artistKey(slot),
+                    albumKey(slot));
+            materialized.put(ids[slot], item);
+        }
+        return item;
+    }
+
+    private String titleOf(int slot) {
+        int length = titleLengths[slot];
+        return length < 0 ? null : new String(titleChars, titleStarts[slot], length);
+    }
+
+    private byte[] artistKey(int slot) {
+        return StringPool.key(strings.keys(), artists[slot]);
+    }
+
+    private byte[] albumKey(int slot) {
+        return StringPool.key(strings.keys(), albums[slot]);
+    }
+
+    private int addSlot(SongColumns songs, int index) {
+        int slot = size;
+        if (slot == ids.length) {
+            int capacity = slot * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            albumIds = Arrays.copyOf(albumIds, capacity);
+            datesAdded = Arrays.copyOf(datesAdded, capacity);
+            datesModified = Arrays.copyOf(datesModified, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            tracks = Arrays.copyOf(tracks, capacity);
+            titleStarts = Arrays.copyOf(titleStarts, capacity);
+            titleLengths = Arrays.copyOf(titleLengths, capacity);
+            titleKeys = Arrays.copyOf(titleKeys, capacity);
+            artists = Arrays.copyOf(artists, capacity);
+            albums = Arrays.copyOf(albums, capacity);
+            genres = Arrays.copyOf(genres, capacity);
+            folders = Arrays.copyOf(folders, capacity);
+            mimeTypes = Arrays.copyOf(mimeTypes, capacity);
+        }
+        size++;
+        setSlot(slot, songs, index);
+        return slot;
+    }
+
+    /** Copies song {@code index} of {@code songs} into {@code slot}. */
+    private void setSlot(int slot, SongColumns songs, int index) {
+        long id = songs.id(index);
+        ids[slot] = id;
+        albumIds[slot] = songs.albumId(index);
+        datesAdded[slot] = songs.dateAdded(index);
+        datesModified[slot] = songs.dateModified(index);
+        generations[slot] = songs.generation(index);
+        durations[slot] = songs.duration(index);
+        tracks[slot] = songs.track(index);
+        setTitle(slot, songs, index);
+        titleKeys[slot] = songs.titleKey(index);
+        artists[slot] = strings.intern(songs.artist(index), songs.artistKey(index));
+        albums[slot] = strings.intern(songs.album(index), songs.albumKey(index));
+        genres[slot] = strings.intern(songs.genre(index), null);
+        folders[slot] = strings.intern(songs.folder(index), null);
+        mimeTypes[slot] = strings.intern(songs.mimeType(index), null);
+        slotsById.put(id, slot);
+    }
+
+    private void setTitle(int slot, SongColumns songs, int index) {
+        int length = songs.titleLength(index);
+        if (length < 0) {
+            titleStarts[slot] = 0;
+            titleLengths[slot] = -1;
+            return;
+        }
+        if (titleCharCount + length > titleChars.length) {
+            titleChars = Arrays.copyOf(titleChars, Math.max(titleChars.length * 2, titleCharCount + length));
+        }
+        songs.copyTitle(index, titleChars, titleCharCount);
+        titleStarts[slot] = titleCharCount;
+        titleLengths[slot] = length;
+        titleCharCount += length;
+    }
+
+    /** Copies the live titles to a new buffer once more of the old one is garbage than not. */
+    private void compactTitlesIfNeeded() {
+        if (deadTitleChars < MIN_COMPACTED_CHARS || deadTitleChars < titleCharCount - deadTitleChars) {
+            return;
+        }
+        char[] compacted = new char[Math.max(1024, (titleCharCount - deadTitleChars) * 2)];
+        int count = 0;
+        for (int slot = 0; slot < size; slot++) {
+            int length = titleLengths[slot];
+            if (length > 0) {
+                System.arraycopy(titleChars, titleStarts[slot], compacted, count, length);
+                titleStarts[slot] = count;
+                count += length;
+            }
+        }
+        titleChars = compacted;
+        titleCharCount = count;
+        deadTitleChars = 0;
+    }
+
+    /** Moves the contents of slot {@code from} to slot {@code to}, leaving {@code from} unused. */
+    private void moveSlot(int from, int to) {
+        ids[to] = ids[from];
+        albumIds[to] = albumIds[from];
+        datesAdded[to] = datesAdded[from];
+        datesModified[to] = datesModified[from];
+        generations[to] = generations[from];
+        durations[to] = durations[from];
+        tracks[to] = tracks[from];
+        titleStarts[to] = titleStarts[from];
+        titleLengths[to] = titleLengths[from];
+        titleKeys[to] = titleKeys[from];
+        artists[to] = artists[from];
+        albums[to] = albums[from];
+        genres[to] = genres[from];
+        folders[to] = folders[from];
+        mimeTypes[to] = mimeTypes[from];
+        slotsById.put(ids[to], to);
+    }
+
+    private void removeSlot(int slot) {
+        for (SortedIndex index : indexes) {
+            if (index != null) {
+                index.remove(slot);
+            }
+        }
+        slotsById.remove(ids[slot]);
+        materialized.remove(ids[slot]);
+        deadTitleChars += Math.max(0, titleLengths[slot]);
+        int last = size - 1;
+        if (slot != last) {
+            // Move the last slot into the hole; its keys stay equal so indexes can find it
+            moveSlot(last, slot);
+            for (SortedIndex index : indexes) {
+                if (index != null) {
+                    index.replace(last, slot);
+                }
+            }
+        }
+        titleKeys[last] = null;
+        size--;
+    }
+
+    /** Disc and track order within an album; songs without a number go last. */
+    private int trackOrder(int slot) {
+        return tracks[slot] > 0 ? tracks[slot] : Integer.MAX_VALUE;
+    }
+
+    private int compare(SortOrder order, int slot1, int slot2) {
+        int result = 0;
+        if (order == SortOrder.ALBUM) {
+            result = SortKeys.compare(albumKey(slot1), albumKey(slot2));
+            if (result == 0) {
+                result = Integer.compare(trackOrder(slot1), trackOrder(slot2));
+            }
+        }
+        if (result == 0) {
+            result = SortKeys.compare(titleKeys[slot1], titleKeys[slot2]);
+        }
+        // Ids make every order total, so a slot can always be found again by binary search
+        return result != 0 ? result : Long.compare(ids[slot1], ids[slot2]);
+    }
+
+    /** One sort order: a sorted array of slots, plus a lazily rebuilt slot-to-position table. */
+    private final class SortedIndex {
+        private final SortOrder order;
+        private int[] slots = new int[16];
+        private int size;
+        private int[] positions = new int[0];
+        private boolean positionsValid;
+
+        SortedIndex(SortOrder order) {
+            this.order = order;
+        }
+
+        void clear() {
+            size = 0;
+            positionsValid = false;
+        }
+
+        int positionOf(int slot) {
+            if (!positionsValid) {
+                if (positions.length < slots.length) {
+                    positions = new int[slots.length];
+                }
+                for (int i = 0; i < size; i++) {
+                    positions[slots[i]] = i;
+                }
+                positionsValid = true;
+            }
+            return positions[slot];
+        }
+
+        /** Sorts the new slots and merges them in, O(n + k log k). */
+        void insertAll(int[] newSlots, int count) {
+            if (count == 1) {
+                insert(newSlots[0]);
+                return;
+            }
+            int[] sorted = Arrays.copyOf(newSlots, count);
+            sort(sorted, new int[count], 0, count);
+            int[] merged = new int[Math.max(16, size + count)];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < size && j < count) {
+                merged[k++] = compare(order, slots[i], sorted[j]) <= 0 ? slots[i++] : sorted[j++];
+            }
+            while (i < size) {
+                merged[k++] = slots[i++];
+            }
+            while (j < count) {
+                merged[k++] = sorted[j++];
+            }
+            slots = merged;
+            size = k;
+            positionsValid = false;
+        }
+
+        void insert(int slot) {
+            int position = search(slot);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            System.arraycopy(slots, position, slots, position + 1, size - position);
+            slots[position] = slot;
+            size++;
+            positionsValid = false;
+        }
+
+        void remove(int slot) {
+            int position = search(slot);
+            if (position < 0) {
+                return;
+            }
+            System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+            size--;
+            positionsValid = false;
+        }
+
+        /** Points the entry for {@code oldSlot} at {@code newSlot}, which holds the same song. */
+        void replace(int oldSlot, int newSlot) {
+            int position = search(newSlot);
+            if (position >= 0 && slots[position] == oldSlot) {
+                slots[position] = newSlot;
+                positionsValid = false;
+            }
+        }
+
+        private int search(int slot) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int result = compare(order, slots[mid], slot);
+                if (result < 0) {
+                    low = mid + 1;
+                } else if (result > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private void sort(int[] array, int[] buffer, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sort(array, buffer, from, mid);
+            sort(array, buffer, mid, to);
+            if (compare(order, array[mid - 1], array[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(array, from, buffer, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < mid && compare(order, buffer[i], buffer[j]) <= 0)) {
+                    array[k] = buffer[i++];
+                } else {
+                    array[k] = buffer[j++];
+                }
+            }
+        }
+    }
+}
@@ -1,26 +1,25 @@
 package com.example.androidautomedia.shared;
 
 import android.annotation.SuppressLint;
-import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
-import android.content.Intent;
-import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.media.AudioAttributes;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
 
 import androidx.annotation.NonNull;
 
 //import android.support.v4.media.MediaBrowserCompat.MediaItem;
 
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaSessionManager;
+import androidx.media.utils.MediaConstants;
 
-import android.provider.MediaStore;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -28,21 +27,16 @@ import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.text.TextUtils;
 import android.util.Log;
-import android.widget.TextView;
 
 import androidx.media3.common.MediaItem;
-import androidx.media3.common.MediaMetadata;
-import androidx.media3.common.MimeTypes;
 
-import java.io.IOException;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * This class provides a MediaBrowser through a service. It exposes the media library to a browsing
@@ -98,18 +92,62 @@ import java.util.Optional;
  */
 public class MyMusicService extends MediaBrowserServiceCompat implements AudioManager.OnAudioFocusChangeListener{
 
-    private static final String MY_MEDIA_ROOT_ID = "media_root_id";
+    private static final String MY_MEDIA_ROOT_ID = BrowseTree.ROOT_ID;
+    /** The browse node listing every song, for clients that show one flat list. */
+    public static final String ALL_SONGS_ID = BrowseTree.SONGS_ID;
+    /**
+     * Extra of playFromMediaId: the browse node the song was chosen in. The songs of that node
+     * become the queue; without it, all songs are queued.
+     */
+    public static final String EXTRA_PARENT_ID = "parent_id";
+    /**
+     * Custom session action switching the playback engine to the one named by
+     * {@link #EXTRA_PLAYBACK_ENGINE}, {@link #ENGINE_MEDIA_PLAYER} or {@link #ENGINE_EXOPLAYER}.
+     * The choice is remembered across restarts.
+     */
+    public static final String ACTION_SET_PLAYBACK_ENGINE = "com.example.androidautomedia.SET_PLAYBACK_ENGINE";
+    public static final String EXTRA_PLAYBACK_ENGINE = "playback_engine";
+    public static final String ENGINE_MEDIA_PLAYER = "media_player";
+    public static final String ENGINE_EXOPLAYER = "exoplayer";
+    private static final String PLAYBACK_PREFERENCES = "playback";
+    // The session queue shows a window of the play queue around the current song, not all of it
+    private static final int QUEUE_WINDOW_BEFORE = 10;
+    private static final int QUEUE_WINDOW_SIZE = 100;
+    private static final int SEARCH_RESULT_LIMIT = 100;
+    // Songs queued by a voice search at most
+    private static final int PLAY_FROM_SEARCH_LIMIT = 1000;
     private static final String TAG = "MyMusicService";
-    private MediaPlayer mediaPlayer;
+    // The song list for UIs in this process; main thread only
+    private static LibrarySnapshot librarySnapshot = LibrarySnapshot.EMPTY;
+    private static final List<Consumer<LibrarySnapshot>> librarySnapshotListeners = new ArrayList<>();
+    // The service between onCreate and onDestroy, so in-process UIs can get a load going
+    private static MyMusicService runningService;
+    private Playback playback;
+    private PlaybackStartMetrics playbackStartMetrics;
     private MediaSessionCompat mediaSession;
+    private PlaybackStatePublisher playbackStatePublisher;
     private MediaSessionCallback mediaSessionCallback;
-    private List<MediaItem> allMediaItems = new ArrayList<>();
-    private List<MediaItem> playlistMediaItems = new ArrayList<>();
-    private List<MediaItem> queueMediaItems = new ArrayList<>();
-    private int currentMediaItemPosition = -1;
+    private final MusicLibrary library = new MusicLibrary();
+    private final BrowseItemCache browseItemCache =
+            new BrowseItemCache(this::convertToMediaBrowserMediaItem);
+    private BrowseTree browseTree;
+    private final PlayQueue playQueue = new PlayQueue();
+    // Rebuilt off the main thread whenever the library settles after a change
+    private SearchIndex searchIndex = SearchIndex.EMPTY;
+    // Continuing from the top after the last song was the behaviour before repeat modes existed
+    private int repeatMode = PlaybackStateCompat.REPEAT_MODE_ALL;
+    // Queue ids last handed to setQueue, to skip publishing an unchanged window
+    private long[] publishedQueueIds = new long[0];
+    private final List<PendingResult> pendingResults = new ArrayList<>();
+    private final Set<String> pendingNotifications = new HashSet<>();
+    private LibraryLoader libraryLoader;
+    private final Searcher searcher = new Searcher();
+    private MediaStoreObserver mediaStoreObserver;
+    private int notifiedLibrarySize;
     private AudioManager audioManager;
     private AudioAttributes playbackAttributes;
     private AudioFocusRequest focusRequest;
+    private ArtworkCache artworkCache;
 
 
 
@@ -117,6 +155,7 @@ public class MyMusicService extends MediaBrowserServiceCompat implements AudioMa
     public void onCreate() {
         super.onCreate();
         audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        artworkCache = ArtworkCache.get(this);
         playbackAttributes = new AudioAttributes.Builder()
                 .setUsage(AudioAttributes.USAGE_MEDIA)
                 .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
@@ -128,102 +167,364 @@ public class MyMusicService extends MediaBrowserServiceCompat implements AudioMa
                 .setAcceptsDelayedFocusGain(true)
                 .setOnAudioFocusChangeListener(this)
                 .build();
-        mediaPlayer = new MediaPlayer();
+        libraryLoader = new LibraryLoader(new MediaStoreScanner(this),
+                new LibraryIndexStore(getFilesDir()), libraryListener);
+        browseTree = new BrowseTree(this, library, browseItemCache, libraryLoader);
+        // Start restoring the library right away, before the first browse request comes in
+        libraryLoader.load();
+        mediaStoreObserver = new MediaStoreObserver(new Handler(Looper.getMainLooper()),
+                deletedIds -> libraryLoader.syncChanges(deletedIds));
+        mediaStoreObserver.register(getContentResolver());
         mediaSession = new MediaSessionCompat(getBaseContext() // getBaseContext() --> this
                 , "MyMusicService");
 
-        PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
-                .setActions(
-                        PlaybackStateCompat.ACTION_PLAY |
-                                PlaybackStateCompat.ACTION_PAUSE |
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                                PlaybackStateCompat.ACTION_SET_REPEAT_MODE |
-                                PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE
-                );
-        mediaSession.setPlaybackState(stateBuilder.build());
+        playbackStatePublisher = new PlaybackStatePublisher(mediaSession);
+        playbackStatePublisher.update(PlaybackStateCompat.STATE_NONE, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN);
+        mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
+        mediaSession.setRepeatMode(repeatMode);
+        mediaSession.setShuffleMode(PlaybackStateCompat.SHUFFLE_MODE_NONE);
         // MySessionCallback() has methods that handle callbacks from a media controller
-        mediaSessionCallback = new MediaSessionCallback(mediaPlayer);
+        mediaSessionCallback = new MediaSessionCallback();
+        playback = createPlayback(getSharedPreferences(PLAYBACK_PREFERENCES, MODE_PRIVATE)
+                .getString(EXTRA_PLAYBACK_ENGINE, ENGINE_MEDIA_PLAYER));
         mediaSession.setCallback(mediaSessionCallback);
         setSessionToken(mediaSession.getSessionToken());
+        runningService = this;
+    }
+
+    /**
+     * The song list as of the last library change, for UIs in the same process as the service;
+     * the browser protocol remains for other apps and the car host. Main thread only.
+     */
+    public static LibrarySnapshot getLibrarySnapshot() {
+        return librarySnapshot;
+    }
+
+    /**
+     * Calls {@code listener} on the main thread with every new library snapshot until it is
+     * removed. While the library is empty this also starts loading it, since such UIs do not
+     * browse, which is what loads it otherwise. Main thread only.
+     */
+    public static void addLibrarySnapshotListener(Consumer<LibrarySnapshot> listener) {
+        librarySnapshotListeners.add(listener);
+        // Storage permission may only just have been granted, or the last scan found nothing
+        if (runningService != null && runningService.library.isEmpty()) {
+            runningService.libraryLoader.load();
+        }
+    }
+
+    public static void removeLibrarySnapshotListener(Consumer<LibrarySnapshot> listener) {
+        librarySnapshotListeners.remove(listener);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        runningService = null;
+        mediaStoreObserver.unregister(getContentResolver());
+        libraryLoader.shutdown();
+        searcher.shutdown();
+        playbackStatePublisher.release();
         mediaSession.release();
-        mediaPlayer.release();
+        playback.release();
     }
 
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                  int clientUid,
                                  Bundle rootHints) {
-        return new BrowserRoot(MY_MEDIA_ROOT_ID, null);
+        // The art URIs in browse items and metadata point to a provider that is not exported
+        ArtworkProvider.grantReadAccess(this, clientPackageName);
+        Bundle extras = new Bundle();
+        extras.putBoolean(MediaConstants.BROWSER_SERVICE_EXTRAS_KEY_SEARCH_SUPPORTED, true);
+        return new BrowserRoot(MY_MEDIA_ROOT_ID, extras);
+    }
+
+    @Override
+    public void onSearch(@NonNull String query, Bundle extras,
+                         @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        result.detach();
+        // The index is immutable, so the worker can use the one current now
+        SearchIndex index = searchIndex;
+        searcher.search(getSubscriptionKey("search"),
+                () -> browseItemCache.getAll(search(index, query, extras, SEARCH_RESULT_LIMIT)),
+                result);
+    }
+
+    /**
+     * Looks up songs for a search. The artist, album and title extras a voice assistant sends are
+     * more precise than its raw query (which may read "X by Y"), so the query is only used when
+     * there are none.
+     */
+    private static SongColumns search(SearchIndex index, String query, Bundle extras, int limit) {
+        return index.search(rawQuery(query, extras), extra(extras, MediaStore.EXTRA_MEDIA_TITLE),
+                extra(extras, MediaStore.EXTRA_MEDIA_ARTIST), extra(extras, MediaStore.EXTRA_MEDIA_ALBUM), limit);
+    }
+
+    /** Like {@link #search}, but returns the MediaStore ids of the songs found. */
+    private static long[] searchIds(SearchIndex index, String query, Bundle extras, int limit) {
+        return index.searchIds(rawQuery(query, extras), extra(extras, MediaStore.EXTRA_MEDIA_TITLE),
+                extra(extras, MediaStore.EXTRA_MEDIA_ARTIST), extra(extras, MediaStore.EXTRA_MEDIA_ALBUM), limit);
+    }
+
+    /** {@code query}, or null if the extras name a title, artist or album. */
+    private static String rawQuery(String query, Bundle extras) {
+        boolean hasFields = !TextUtils.isEmpty(extra(extras, MediaStore.EXTRA_MEDIA_TITLE))
+                || !TextUtils.isEmpty(extra(extras, MediaStore.EXTRA_MEDIA_ARTIST))
+                || !TextUtils.isEmpty(extra(extras, MediaStore.EXTRA_MEDIA_ALBUM));
+        return hasFields ? null : query;
+    }
+
+    private static String extra(Bundle extras, String key) {
+        return extras != null ? extras.getString(key) : null;
     }
 
     @Override
     public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
-        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        loadChildren(parentId, result, 0, Integer.MAX_VALUE);
+    }
 
-        // Loading all songs from phone
-        if (TextUtils.equals(parentId,MY_MEDIA_ROOT_ID)) {
-            List<MediaItem> songs = loadSongsFromDevice();
-            for (MediaItem song : songs) {
-                mediaItems.add(convertToMediaBrowserMediaItem(song));
-            }
-        } else {
-            // Handle loading children based on the parent ID
-            // Use this for playlists
+    /**
+     * Serves one page when the client asks for {@link MediaBrowserCompat#EXTRA_PAGE} and
+     * {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}, so a large library is never sent across binder
+     * in one transaction.
+     */
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result,
+                               @NonNull Bundle options) {
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            onLoadChildren(parentId, result);
+            return;
+        }
+        long from = (long) page * pageSize;
+        loadChildren(parentId, result, (int) Math.min(from, Integer.MAX_VALUE),
+                (int) Math.min(from + pageSize, Integer.MAX_VALUE));
+    }
+
+    private void loadChildren(String parentId, Result<List<MediaBrowserCompat.MediaItem>> result,
+                              int from, int to) {
+        if (TextUtils.equals(parentId, MY_MEDIA_ROOT_ID)) {
+            result.sendResult(slice(browseTree.getRootChildren(), from, to));
+            return;
+        }
+        result.detach();
+        String subscriptionKey = getSubscriptionKey(parentId);
+        if (library.isEmpty()) {
+            // Nothing restored or scanned yet (or storage permission was only just granted),
+            // answer as soon as the first songs are in
+            pendingResults.add(new PendingResult(parentId, subscriptionKey, result, from, to));
+            libraryLoader.load();
+            return;
+        }
+        sendChildren(parentId, subscriptionKey, result, from, to);
+    }
+
+    private void sendChildren(String parentId, String subscriptionKey,
+                              Result<List<MediaBrowserCompat.MediaItem>> result, int from, int to) {
+        if (TextUtils.equals(parentId, ALL_SONGS_ID)) {
+            // Loading all songs from phone, only the requested page is copied and converted
+            libraryLoader.loadChildren(subscriptionKey,
+                    library.snapshot(MusicLibrary.SortOrder.TITLE, from, to),
+                    browseItemCache::getAll, result);
+            return;
+        }
+        browseTree.getChildren(parentId, children -> result.sendResult(slice(children, from, to)));
+    }
+
+    private static List<MediaBrowserCompat.MediaItem> slice(List<MediaBrowserCompat.MediaItem> children,
+                                                            int from, int to) {
+        if (children == null || from >= children.size()) {
+            return new ArrayList<>();
+        }
+        if (from == 0 && to >= children.size()) {
+            return children;
         }
+        return new ArrayList<>(children.subList(from, Math.min(to, children.size())));
+    }
+
+    @SuppressLint("RestrictedApi")
+    @Override
+    public void onUnsubscribe(String id) {
+        super.onUnsubscribe(id);
+        String subscriptionKey = getSubscriptionKey(id);
+        libraryLoader.cancel(subscriptionKey);
+        pendingResults.removeIf(pending -> pending.subscriptionKey.equals(subscriptionKey));
+    }
 
-        result.sendResult(mediaItems);
+    /**
+     * Identifies a browse request by parent id and calling client, so that one client dropping
+     * its subscription does not cancel another client's load of the same node.
+     */
+    private String getSubscriptionKey(String parentId) {
+        MediaSessionManager.RemoteUserInfo browser = getCurrentBrowserInfo();
+        return parentId + '/' + browser.getPackageName() + '/' + browser.getUid() + '/' + browser.getPid();
     }
-    @SuppressLint("Range")
-    private List<MediaItem> loadSongsFromDevice() {
-        if (allMediaItems.isEmpty()) {
-            ContentResolver contentResolver = getContentResolver();
-            Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-            String[] projection = {
-                    MediaStore.Audio.Media._ID,
-                    MediaStore.Audio.Media.TITLE,
-                    MediaStore.Audio.Media.ARTIST,
-                    MediaStore.Audio.Media.ALBUM_ID
-            };
-            String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-            try (Cursor cursor = contentResolver.query(uri, projection, selection, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    do {
-                        long id = cursor.getLong(cursor.getColumnIndex(MediaStore.Audio.Media._ID));
-                        String title = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.TITLE));
-                        String artist = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST));
-                        long albumId = cursor.getLong(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID));
-                        Uri artworkUri = ContentUris.withAppendedId(Uri.parse("content://media/external/audio/albumart"), albumId);
-
-                        MediaItem mediaItem = new MediaItem.Builder()
-                                .setMediaId(String.valueOf(id))
-                                .setUri(Uri.withAppendedPath(uri, String.valueOf(id)))
-                                .setMimeType(MimeTypes.AUDIO_MPEG)
-                                .setMediaMetadata(new MediaMetadata.Builder()
-                                        .setTitle(title)
-                                        .setArtist(artist)
-                                        .setArtworkUri(artworkUri)
-                                        .build())
-                                .build();
-
-                        allMediaItems.add(mediaItem);
-                    } while (cursor.moveToNext());
+
+    /**
+     * Receives library updates from the loader on the main thread, so the session callbacks never
+     * see a half-built list.
+     */
+    private final LibraryLoader.Listener libraryListener = new LibraryLoader.Listener() {
+        @Override
+        public void onLibraryPage(SongColumns page, boolean last) {
+            int[] added = new int[page.size()];
+            int addedCount = 0;
+            for (int i = 0; i < page.size(); i++) {
+                if (!library.contains(page.id(i))) {
+                    added[addedCount++] = i;
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading songs from device: " + e.getMessage());
             }
+            library.append(page);
+            pendingNotifications.addAll(browseTree.applyDelta(SongColumns.EMPTY,
+                    page.select(Arrays.copyOf(added, addedCount))));
+            if (last) {
+                onLibraryChanged();
+            }
+            if (!pendingResults.isEmpty()) {
+                sendPendingResults();
+            } else if (last || library.size() >= 2 * notifiedLibrarySize) {
+                // Re-publish when the list has doubled, so subscribers grow with the scan without
+                // re-sending the whole library after every page
+                notifiedLibrarySize = library.size();
+                notifyAffectedNodes(pendingNotifications);
+                pendingNotifications.clear();
+                if (!last) {
+                    publishLibrarySnapshot(library.snapshot());
+                }
+            }
+        }
+
+        @Override
+        public void onLibraryScanFailed() {
+            // Keep what was paged in for now, but do not persist it: without an index the next
+            // load scans again
+            SongColumns snapshot = library.snapshot();
+            libraryLoader.buildSearchIndex(snapshot, index -> searchIndex = index);
+            publishLibrarySnapshot(snapshot);
+            notifyAffectedNodes(pendingNotifications);
+            sendPendingResults();
+        }
+
+        @Override
+        public void onLibraryRestored(SongColumns items) {
+            library.replaceAll(items);
+            browseTree.reset();
+            SongColumns snapshot = library.snapshot();
+            libraryLoader.buildSearchIndex(snapshot, index -> searchIndex = index);
+            publishLibrarySnapshot(snapshot);
+            sendPendingResults();
+        }
+
+        @Override
+        public void onLibraryDelta(SongColumns upserts, Set<String> removedIds, int storeCount) {
+            // The tree needs the old versions to find the groups songs are leaving
+            long[] oldIds = new long[upserts.size() + removedIds.size()];
+            int oldCount = 0;
+            for (int i = 0; i < upserts.size(); i++) {
+                oldIds[oldCount++] = upserts.id(i);
+            }
+            for (String mediaId : removedIds) {
+                oldIds[oldCount++] = Long.parseLong(mediaId);
+            }
+            SongColumns oldSongs = library.snapshotOf(oldIds);
+            Set<Long> removed = new HashSet<>();
+            for (String mediaId : removedIds) {
+                browseItemCache.remove(mediaId);
+                removed.add(Long.parseLong(mediaId));
+            }
+            // A changed file may carry new art, and a new song art for an album that had none
+            Set<Long> changedAlbums = new HashSet<>();
+            for (int i = 0; i < upserts.size(); i++) {
+                changedAlbums.add(upserts.albumId(i));
+            }
+            if (!changedAlbums.isEmpty()) {
+                artworkCache.invalidate(changedAlbums);
+            }
+            if (library.applyDelta(upserts, removedIds)) {
+                // Removed songs leave the queue; changed ones may show up in its window
+                playQueue.removeAll(removed);
+                publishQueue(!upserts.isEmpty());
+                // The song after the current one may have changed too
+                mediaSessionCallback.rearmNextTrack();
+                onLibraryChanged();
+                notifyAffectedNodes(browseTree.applyDelta(oldSongs, upserts));
+            }
+            if (storeCount >= 0 && storeCount != library.size()) {
+                Log.d(TAG, "Library has " + library.size() + " songs, MediaStore " + storeCount + ", reconciling");
+                libraryLoader.reconcile(library.snapshot());
+            }
+        }
+    };
+
+    /**
+     * Publishes the part of the play queue around the current song. Nothing is sent when the
+     * window holds the same entries as last time, unless {@code force} (their songs changed).
+     */
+    private void publishQueue(boolean force) {
+        int from = Math.max(0, playQueue.currentPosition() - QUEUE_WINDOW_BEFORE);
+        int to = Math.min(playQueue.size(), from + QUEUE_WINDOW_SIZE);
+        long[] queueIds = new long[to - from];
+        for (int i = from; i < to; i++) {
+            queueIds[i - from] = playQueue.queueIdAt(i);
+        }
+        if (!force && Arrays.equals(queueIds, publishedQueueIds)) {
+            return;
+        }
+        long[] songIds = new long[to - from];
+        for (int i = from; i < to; i++) {
+            songIds[i - from] = playQueue.mediaIdAt(i);
+        }
+        // In queue order, without the songs no longer in the library
+        SongColumns songs = library.snapshotOf(songIds);
+        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(songs.size());
+        for (int i = from, song = 0; i < to && song < songs.size(); i++) {
+            if (songs.id(song) == playQueue.mediaIdAt(i)) {
+                queueItems.add(new MediaSessionCompat.QueueItem(
+                        browseItemCache.get(songs, song++).getDescription(), playQueue.queueIdAt(i)));
+            }
+        }
+        mediaSession.setQueue(queueItems);
+        publishedQueueIds = queueIds;
+    }
+
+    /**
+     * Persists the library, rebuilds the search index and publishes the library snapshot, all from
+     * the same copy.
+     */
+    private void onLibraryChanged() {
+        SongColumns snapshot = library.snapshot();
+        libraryLoader.persist(snapshot);
+        libraryLoader.buildSearchIndex(snapshot, index -> searchIndex = index);
+        publishLibrarySnapshot(snapshot);
+    }
+
+    private static void publishLibrarySnapshot(SongColumns songs) {
+        librarySnapshot = new LibrarySnapshot(songs, librarySnapshot.getVersion() + 1);
+        // Copied, so a listener may remove itself
+        for (Consumer<LibrarySnapshot> listener : new ArrayList<>(librarySnapshotListeners)) {
+            listener.accept(librarySnapshot);
+        }
+    }
+
+    /**
+     * Tells subscribers about the browse nodes a library change touched, instead of invalidating
+     * the whole tree.
+     */
+    private void notifyAffectedNodes(Set<String> nodeIds) {
+        for (String nodeId : nodeIds) {
+            notifyChildrenChanged(nodeId);
         }
-        allMediaItems.sort((item1, item2) -> {
-            String title1 = (String) Objects.requireNonNull(item1.mediaMetadata.title);
-            String title2 = (String) Objects.requireNonNull(item2.mediaMetadata.title);
-            return title1.compareToIgnoreCase(title2);
-        });
-        return allMediaItems;
+    }
+
+    private void sendPendingResults() {
+        for (PendingResult pending : pendingResults) {
+            sendChildren(pending.parentId, pending.subscriptionKey, pending.result, pending.from, pending.to);
+        }
+        pendingResults.clear();
+        pendingNotifications.clear();
+        notifiedLibrarySize = library.size();
     }
 
     private MediaBrowserCompat.MediaItem convertToMediaBrowserMediaItem(MediaItem mediaItem) {
@@ -236,12 +537,35 @@ public class MyMusicService extends MediaBrowserServiceCompat implements AudioMa
                 .setTitle(mediaItem.mediaMetadata.title.toString())
                 .setSubtitle(mediaItem.mediaMetadata.artist.toString())
                 .setMediaUri(mediaItem.localConfiguration.uri)
-                .setIconUri(mediaItem.mediaMetadata.artworkUri)
+                .setIconUri(ArtworkProvider.artworkUri(this, mediaItem))
                 .build();
 
         return new MediaBrowserCompat.MediaItem(description, MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
     }
 
+    private Playback createPlayback(String engine) {
+        Log.d(TAG, "Playback engine " + engine);
+        playbackStartMetrics = new PlaybackStartMetrics(engine);
+        if (ENGINE_EXOPLAYER.equals(engine)) {
+            return new ExoPlayerPlayback(this, mediaSessionCallback);
+        }
+        return new MediaPlayerPlayback(this, playbackAttributes, mediaSessionCallback);
+    }
+
+    /** Swaps the playback engine, carrying on with the current song if one was playing. */
+    private void setPlaybackEngine(String engine) {
+        getSharedPreferences(PLAYBACK_PREFERENCES, MODE_PRIVATE).edit()
+                .putString(EXTRA_PLAYBACK_ENGINE, engine)
+                .apply();
+        boolean wasPlaying = playback.isPlayWhenReady();
+        playback.stop();
+        playback.release();
+        playback = createPlayback(engine);
+        if (wasPlaying && !playQueue.isEmpty()) {
+            mediaSessionCallback.playCurrentQueueItem();
+        }
+    }
+
     @Override
     public void onAudioFocusChange(int focusChange) {
         switch (focusChange) {
@@ -251,113 +575,288 @@ public class MyMusicService extends MediaBrowserServiceCompat implements AudioMa
 ////                }
 //                break;
             case AudioManager.AUDIOFOCUS_LOSS:
-                mediaPlayer.stop();
-                mediaPlayer.reset();
+                // Through the session callback, so the published state follows
+                mediaSessionCallback.onStop();
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                if (mediaPlayer.isPlaying()) {
-                    mediaPlayer.pause();
-                }
+                mediaSessionCallback.onPause();
                 break;
         }
     }
 
-    private final class MediaSessionCallback extends MediaSessionCompat.Callback {
-        private final MediaPlayer mediaPlayer;
+    private static final class PendingResult {
+        final String parentId;
+        final String subscriptionKey;
+        final Result<List<MediaBrowserCompat.MediaItem>> result;
+        final int from;
+        final int to;
+
+        PendingResult(String parentId, String subscriptionKey,
+                      Result<List<MediaBrowserCompat.MediaItem>> result, int from, int to) {
+            this.parentId = parentId;
+            this.subscriptionKey = subscriptionKey;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+    }
 
-        public MediaSessionCallback(MediaPlayer mediaPlayer) {
-            this.mediaPlayer = mediaPlayer;
-            mediaPlayer.setOnCompletionListener(mediaPlayer1 -> {
-                Log.d("onCompletion()","NEXT");
-                onSkipToNext();
-            });
+    private final class MediaSessionCallback extends MediaSessionCompat.Callback
+            implements Playback.Callback {
+
+        @Override
+        public void onCompletion() {
+            Log.d("onCompletion()","NEXT");
+            if (repeatMode == PlaybackStateCompat.REPEAT_MODE_ONE) {
+                playCurrentQueueItem();
+            } else if (playQueue.moveToNext(wrapsAround()) >= 0) {
+                publishQueue(false);
+                playCurrentQueueItem();
+            } else {
+                // End of the queue without repeat
+                playback.stop();
+                playbackStatePublisher.update(PlaybackStateCompat.STATE_STOPPED,
+                        PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN);
+            }
+        }
+
+        private boolean wrapsAround() {
+            return repeatMode != PlaybackStateCompat.REPEAT_MODE_NONE;
+        }
+
+        @Override
+        public void onPrepared(String mediaId) {
+            Log.d("onPrepared()", mediaId);
+            playbackStartMetrics.onPrepared(mediaId);
+            MediaItem song = library.find(Long.parseLong(mediaId));
+            if (song != null) {
+                // Again, now that the duration is known
+                setMetadata(song, playback.getDuration());
+            }
+            if (playback.isPlaying()) {
+                publishPlaying();
+            } else {
+                publishPaused();
+            }
+            prepareNextTrack();
+        }
+
+        @Override
+        public void onError(String mediaId) {
+            playbackStartMetrics.onError(mediaId);
+            playbackStatePublisher.updateError(PlaybackStateCompat.ERROR_CODE_APP_ERROR, "Cannot play " + mediaId);
+        }
+
+        @Override
+        public void onNextTrackStarted(String mediaId) {
+            Log.d("onNextTrackStarted()", mediaId);
+            if (repeatMode != PlaybackStateCompat.REPEAT_MODE_ONE) {
+                playQueue.moveToNext(wrapsAround());
+                publishQueue(false);
+            }
+            MediaItem song = library.find(Long.parseLong(mediaId));
+            if (song == null) {
+                return;
+            }
+            setMetadata(song, playback.getDuration());
+            publishPlaying();
+            prepareNextTrack();
+        }
+
+        /**
+         * Gets the song to play after the current one ready, so it starts without a gap: the same
+         * song with repeat one, otherwise the next in queue or shuffle order.
+         */
+        void prepareNextTrack() {
+            int nextPosition = repeatMode == PlaybackStateCompat.REPEAT_MODE_ONE
+                    ? playQueue.currentPosition()
+                    : playQueue.peekNext(wrapsAround());
+            MediaItem next = nextPosition >= 0 ? library.find(playQueue.mediaIdAt(nextPosition)) : null;
+            if (next != null && next.localConfiguration != null) {
+                playback.setNext(next.mediaId, next.localConfiguration.uri, next.localConfiguration.mimeType);
+            } else {
+                playback.clearNext();
+            }
+        }
+
+        /**
+         * Re-arms the next song after an edit that may have changed it. A song still preparing
+         * needs nothing: {@link #onPrepared} arms its next song.
+         */
+        void rearmNextTrack() {
+            if (playback.isPrepared()) {
+                prepareNextTrack();
+            }
         }
+
         @Override
         public void onPlay() {
             Log.d("onPlay()","CALLED");
-            if(!mediaPlayer.isPlaying()){
-                mediaPlayer.start();
-                mediaSession.setPlaybackState(new PlaybackStateCompat.Builder()
-                        .setState(PlaybackStateCompat.STATE_PLAYING, mediaPlayer.getCurrentPosition(), 1.0f)
-                        .setActions(
-                                PlaybackStateCompat.ACTION_PAUSE |
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                                PlaybackStateCompat.ACTION_SEEK_TO |
-                                PlaybackStateCompat.ACTION_SET_REPEAT_MODE |
-                                PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE
-                        )
-                        .build());
-                mediaSession.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_NONE);
-                mediaSession.setShuffleMode(PlaybackStateCompat.SHUFFLE_MODE_NONE);
-                Intent intent = new Intent("song_duration_update");
-                intent.putExtra("duration", getSongDuration());
-                LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+            if (playback.isPreparing()) {
+                // Plays as soon as it is prepared
+                playback.start();
+            } else if(!playback.isPlaying()){
+                playback.start();
+                publishPlaying();
             }
         }
 
+        private void publishPlaying() {
+            playbackStatePublisher.update(PlaybackStateCompat.STATE_PLAYING, playback.getCurrentPosition());
+        }
+
 
         @Override
         public void onSkipToQueueItem(long queueId) {
-
+            Log.d("onSkipToQueueItem()", String.valueOf(queueId));
+            if (!playQueue.skipTo(queueId)) {
+                Log.e(TAG, "Unknown queue id " + queueId);
+                return;
+            }
+            publishQueue(false);
+            playCurrentQueueItem();
+            // Without audio focus the old song plays on, still followed by the old next song
+            rearmNextTrack();
         }
 
         @Override
         public void onSeekTo(long position) {
-            if (mediaPlayer != null) {
-                mediaPlayer.seekTo((int) position);
-                mediaSession.setPlaybackState(new PlaybackStateCompat.Builder()
-                        .setState(mediaPlayer.isPlaying() ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_PAUSED,
-                                mediaPlayer.getCurrentPosition(), mediaPlayer.isPlaying() ? 1.0f : 0.0f)
-                        .setActions(
-                                PlaybackStateCompat.ACTION_PAUSE |
-                                        PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                                        PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                                        PlaybackStateCompat.ACTION_SEEK_TO |
-                                        PlaybackStateCompat.ACTION_SET_REPEAT_MODE |
-                                        PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE
-                        )
-                        .build());
+            if (playback != null) {
+                playback.seekTo((int) position);
+                // The seek itself completes asynchronously; publish where it lands
+                playbackStatePublisher.update(playback.isPlaying()
+                        ? PlaybackStateCompat.STATE_PLAYING
+                        : PlaybackStateCompat.STATE_PAUSED, position);
             }
         }
 
         @Override
         public void onAddQueueItem(MediaDescriptionCompat description) {
-            super.onAddQueueItem(description);
+            onAddQueueItem(description, playQueue.size());
+        }
+
+        @Override
+        public void onAddQueueItem(MediaDescriptionCompat description, int index) {
+            long id = toLibraryId(description);
+            if (id < 0) {
+                return;
+            }
+            playQueue.insert(index, id);
+            publishQueue(false);
+            rearmNextTrack();
+        }
+
+        @Override
+        public void onRemoveQueueItem(MediaDescriptionCompat description) {
+            long id = toLibraryId(description);
+            if (id >= 0 && playQueue.remove(id)) {
+                publishQueue(false);
+                rearmNextTrack();
+            }
+        }
+
+        /** The MediaStore id of a song in the library, or -1. */
+        private long toLibraryId(MediaDescriptionCompat description) {
+            String mediaId = description.getMediaId();
+            int position = mediaId != null ? library.indexOf(mediaId) : -1;
+            if (position < 0) {
+                Log.e(TAG, "Unknown media id " + mediaId);
+                return -1;
+            }
+            return Long.parseLong(mediaId);
         }
 
 
         @Override
         public void onSetRepeatMode(int repeatMode) {
-            super.onSetRepeatMode(repeatMode);
+            Log.d("onSetRepeatMode()", String.valueOf(repeatMode));
+            MyMusicService.this.repeatMode = repeatMode;
+            mediaSession.setRepeatMode(repeatMode);
+            rearmNextTrack();
         }
 
         @Override
         public void onSetShuffleMode(int shuffleMode) {
-            super.onSetShuffleMode(shuffleMode);
+            Log.d("onSetShuffleMode()", String.valueOf(shuffleMode));
+            // Shuffles the queue that is there; SHUFFLE_MODE_GROUP is treated as ALL
+            playQueue.setShuffled(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mediaSession.setShuffleMode(shuffleMode);
+            rearmNextTrack();
         }
 
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             Log.d("onPlayFromMediaId()", mediaId);
-            MediaItem selectedMediaItem = getMediaFromMediaId(mediaId);
-            assert selectedMediaItem != null;
+            if (library.indexOf(mediaId) < 0) {
+                Log.e(TAG, "Unknown media id " + mediaId);
+                return;
+            }
+            long id = Long.parseLong(mediaId);
+            String parentId = extras != null ? extras.getString(EXTRA_PARENT_ID) : null;
+            if (parentId == null || ALL_SONGS_ID.equals(parentId)) {
+                // Playing from the song list queues the whole list, starting at the chosen song,
+                // whose place the title index already knows
+                playFrom(library.ids(MusicLibrary.SortOrder.TITLE), library.indexOf(id));
+                return;
+            }
+            // From an album, genre or folder, its songs in the order they are listed in
+            browseTree.getSongIds(parentId, nodeIds -> {
+                if (nodeIds != null) {
+                    playFrom(nodeIds, positionOf(nodeIds, id));
+                } else {
+                    Log.e(TAG, "Unknown parent " + parentId + ", queueing all songs");
+                    playFrom(library.ids(MusicLibrary.SortOrder.TITLE), library.indexOf(id));
+                }
+            });
+        }
+
+        /**
+         * Replaces the queue with {@code ids} and plays the song at {@code start}, or logs that the
+         * song is gone if {@code start} is -1.
+         */
+        private void playFrom(long[] ids, int start) {
+            if (start < 0) {
+                // Left the node or the library while it was being grouped
+                Log.e(TAG, "Chosen song is gone");
+                return;
+            }
+            playQueue.replace(ids, ids.length, start);
+            publishQueue(false);
+            playCurrentQueueItem();
+        }
+
+        /** Position of {@code id} among a browse node's songs, or -1. */
+        private int positionOf(long[] ids, long id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Plays the current queue entry from the start. */
+        void playCurrentQueueItem() {
+            MediaItem selectedMediaItem = library.find(playQueue.currentMediaId());
+            if (selectedMediaItem == null) {
+                Log.e(TAG, "Queue entry not in library: " + playQueue.currentMediaId());
+                return;
+            }
+            String mediaId = selectedMediaItem.mediaId;
             Log.d("MEDIAITEMURI",String.valueOf(selectedMediaItem.mediaMetadata.artworkUri));
             assert Objects.requireNonNull(selectedMediaItem).localConfiguration != null;
             assert selectedMediaItem.localConfiguration != null;
             Uri mediaUri = selectedMediaItem.localConfiguration.uri;
+            String mimeType = selectedMediaItem.localConfiguration.mimeType;
             int focusResult = audioManager.requestAudioFocus(focusRequest);
             if (focusResult == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
                 Log.d("FOCUS REQUEST","GRANTED");
-                try {
-                    mediaPlayer.reset();
-                    mediaPlayer.setDataSource(getApplicationContext(), mediaUri);
-                    mediaPlayer.prepare();
-                    setMetadata(selectedMediaItem);
-                    onPlay();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error playing media: " + e.getMessage());
-                }
+                // Show the song right away; it starts playing in onPrepared. Skips arriving
+                // meanwhile are coalesced by the playback.
+                setMetadata(selectedMediaItem, 0);
+                playbackStatePublisher.update(PlaybackStateCompat.STATE_BUFFERING, 0);
+                playbackStartMetrics.onLoad(mediaId, mimeType);
+                playback.load(mediaId, mediaUri, mimeType);
             } else {
                 Log.d("FOCUS REQUEST","NOT GRANTED");
             }
@@ -366,86 +865,131 @@ public class MyMusicService extends MediaBrowserServiceCompat implements AudioMa
 
         @Override
         public void onPause() {
-            if(mediaPlayer.isPlaying()){
-                mediaPlayer.pause();
-                mediaSession.setPlaybackState(new PlaybackStateCompat.Builder()
-                        .setState(PlaybackStateCompat.STATE_PAUSED, mediaPlayer.getCurrentPosition(), 1.0f)
-                        .setActions(
-                                PlaybackStateCompat.ACTION_PLAY |
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                                PlaybackStateCompat.ACTION_SEEK_TO
-                        )
-                        .build());
+            if (playback.isPlayWhenReady()) {
+                playback.pause();
+                publishPaused();
             }
         }
 
-        @Override
-        public void onStop() {
-            if(mediaPlayer.isPlaying()) {
-                mediaPlayer.stop();
-                mediaPlayer.reset();
-                mediaSession.setPlaybackState(new PlaybackStateCompat.Builder()
-                        .setState(PlaybackStateCompat.STATE_STOPPED, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN, 0)
-                        .build());
-            }
+        private void publishPaused() {
+            playbackStatePublisher.update(PlaybackStateCompat.STATE_PAUSED, playback.getCurrentPosition());
         }
 
-
-        public int getSongDuration() {
-            if (mediaPlayer != null) {
-                return mediaPlayer.getDuration();
+        @Override
+        public void onStop() {
+            if (playback.isPlayWhenReady() || playback.isPreparing()) {
+                playback.stop();
+                playbackStatePublisher.update(PlaybackStateCompat.STATE_STOPPED,
+                        PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN);
             }
-            return 0;
         }
 
 
         @Override
         public void onSkipToNext() {
             Log.d("onSkipToNext()","NEXT");
-            currentMediaItemPosition++;
-            if(currentMediaItemPosition == allMediaItems.size()){
-                currentMediaItemPosition = 0;
+            if (playQueue.isEmpty()) {
+                return;
             }
-            onPlayFromMediaId(allMediaItems.get(currentMediaItemPosition).mediaId,null);
+            if (playQueue.moveToNext(wrapsAround()) < 0) {
+                // Last song without repeat: nothing to skip to
+                return;
+            }
+            publishQueue(false);
+            playCurrentQueueItem();
         }
 
         @Override
         public void onSkipToPrevious() {
             Log.d("onSkipToPrevious()","PREVIOUS");
-            currentMediaItemPosition--;
-            if(currentMediaItemPosition < 0){
-                currentMediaItemPosition = allMediaItems.size() - 1;
+            if (playQueue.isEmpty()) {
+                return;
             }
-            onPlayFromMediaId(allMediaItems.get(currentMediaItemPosition).mediaId,null);
+            // With no previous song (first in the queue or shuffle history), restart the current one
+            playQueue.moveToPrevious(wrapsAround());
+            publishQueue(false);
+            playCurrentQueueItem();
         }
 
         @Override
         public void onCustomAction(String action, Bundle extras) {
+            if (ACTION_SET_PLAYBACK_ENGINE.equals(action) && extras != null) {
+                setPlaybackEngine(extras.getString(EXTRA_PLAYBACK_ENGINE, ENGINE_MEDIA_PLAYER));
+            }
         }
 
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
+            Log.d("onPlayFromSearch()", String.valueOf(query));
+            if (TextUtils.isEmpty(query) && (extras == null || extras.isEmpty())) {
+                // "Play some music": carry on with the queue, or play the library
+                if (playQueue.isEmpty()) {
+                    playQueue.replace(library.ids(MusicLibrary.SortOrder.TITLE), library.size(), 0);
+                    publishQueue(false);
+                }
+                if (!playQueue.isEmpty()) {
+                    playCurrentQueueItem();
+                }
+                return;
+            }
+            SearchIndex index = searchIndex;
+            searcher.searchForPlayback(() -> searchIds(index, query, extras, PLAY_FROM_SEARCH_LIMIT),
+                    ids -> playSearchResult(query, ids));
         }
-        private MediaItem getMediaFromMediaId(String mediaId) {
-            currentMediaItemPosition = -1;
-                for (MediaItem mediaItem : allMediaItems) {
-                    currentMediaItemPosition++;
-                    if (mediaItem.mediaId.equals(mediaId)) {
-                        return mediaItem;
-                    }
+
+        private void playSearchResult(String query, long[] ids) {
+            // The index may lag behind the library by a delta; skip songs that are gone
+            int count = 0;
+            for (long id : ids) {
+                if (library.contains(id)) {
+                    ids[count++] = id;
                 }
-            currentMediaItemPosition = -1;
-            return null;
+            }
+            if (count == 0) {
+                Log.d(TAG, "No songs match " + query);
+                playbackStatePublisher.updateError(PlaybackStateCompat.ERROR_CODE_UNKNOWN_ERROR,
+                        "No songs match " + query);
+                return;
+            }
+            playQueue.replace(ids, count, 0);
+            publishQueue(false);
+            playCurrentQueueItem();
         }
-        private void setMetadata(MediaItem mediaItem) {
+
+        /**
+         * Publishes the song as now playing. {@code duration} is in ms, 0 while unknown (before
+         * the song is prepared), in which case MediaStore's figure is published so the seek bar is
+         * right from the start. Clients, the phone UI and the car host alike, take the duration
+         * from here.
+         */
+        private void setMetadata(MediaItem mediaItem, long duration) {
+            Bundle extras = mediaItem.mediaMetadata.extras;
+            long knownDuration = duration > 0 || extras == null
+                    ? duration
+                    : extras.getLong(MediaStoreScanner.EXTRA_DURATION);
+            int track = extras != null ? extras.getInt(MediaStoreScanner.EXTRA_TRACK) : 0;
+            long albumId = extras != null ? extras.getLong(MediaStoreScanner.EXTRA_ALBUM_ID) : 0;
+            Bitmap albumArt = artworkCache.getCached(albumId);
+            if (albumArt == null) {
+                // Published again once the scaled art is loaded, if the song is still current
+                artworkCache.load(albumId, bitmap -> {
+                    if (mediaItem.mediaId.equals(String.valueOf(playQueue.currentMediaId()))) {
+                        setMetadata(mediaItem, duration);
+                    }
+                });
+            }
+            String artworkUri = String.valueOf(ArtworkProvider.artworkUri(MyMusicService.this, mediaItem));
             mediaSession.setMetadata(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaItem.mediaId)
                     .putString(MediaMetadataCompat.METADATA_KEY_TITLE, (String) mediaItem.mediaMetadata.title)
                     .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, (String) mediaItem.mediaMetadata.artist)
-                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, (String) mediaItem.mediaMetadata.albumArtist)
-                    .putString(MediaMetadataCompat.METADATA_KEY_ART_URI, String.valueOf(mediaItem.mediaMetadata.artworkUri))
-                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, String.valueOf(mediaItem.mediaMetadata.artworkUri))
-                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, getSongDuration())
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, (String) mediaItem.mediaMetadata.albumTitle)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ART_URI, artworkUri)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artworkUri)
+                    .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, knownDuration)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_TRACK_NUMBER, track % 1000)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DISC_NUMBER, track / 1000)
                     .build());
         }
 
@@ -0,0 +1,361 @@
+package com.example.androidautomedia.shared;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The play queue: an array of MediaStore ids, each with a queue id that stays the same for as long
+ * as the entry is in the queue, plus the position of the current entry.
+ * <p>
+ * Appending, stepping to the next or previous entry and jumping to an entry by queue id are
+ * constant time (the last through a queue id to position index). Inserting or removing in the
+ * middle shifts the entries behind, which is rare and only costs an array copy.
+ * <p>
+ * Shuffle plays the queue in the order of a permutation of positions held in an int array. The
+ * permutation is drawn one step of Fisher-Yates at a time as playback advances, so turning shuffle
+ * on costs one zeroed array (zero stands for "not moved") and each skip is constant time. The
+ * drawn prefix doubles as history for skipping back. Peeking at the next entry only picks the
+ * random choice of the next step, which moving to it then makes. Jumping to an entry makes it the
+ * next draw (or, if it already played in this pass, steps through the history to it), keeping the
+ * permutation; the inverse permutation is kept alongside to find its slot in constant time.
+ * Editing the queue while shuffled starts a new permutation from the current entry.
+ * <p>
+ * Only the main thread touches it.
+ */
+final class PlayQueue {
+
+    private long[] mediaIds = new long[16];
+    private long[] queueIds = new long[16];
+    private int size;
+    private int current = -1;
+    private long nextQueueId;
+    private final LongIntMap positionsByQueueId = new LongIntMap();
+    private final Random random = new Random();
+    private boolean shuffled;
+    // Shuffled play order: positions + 1, zero meaning the slot's own position. Slots below
+    // shuffleDrawn are fixed; shuffleIndex is the current entry's slot. shuffleSlots is the
+    // inverse, slot + 1 per position, zero again meaning the same number.
+    private int[] shuffleOrder;
+    private int[] shuffleSlots;
+    private int shuffleDrawn;
+    private int shuffleIndex;
+    // Slot the next draw swaps into place, picked by a peek ahead of the move; -1 if not picked yet
+    private int nextDrawSlot = -1;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Position of the current entry, or -1. */
+    int currentPosition() {
+        return current;
+    }
+
+    long mediaIdAt(int position) {
+        return mediaIds[position];
+    }
+
+    long queueIdAt(int position) {
+        return queueIds[position];
+    }
+
+    /** MediaStore id of the current entry, or -1. */
+    long currentMediaId() {
+        return current >= 0 ? mediaIds[current] : -1;
+    }
+
+    /**
+     * Replaces the whole queue with the first {@code count} of {@code ids}; {@code start} becomes
+     * current. The queue takes {@code ids} over rather than copying it, so the caller must not
+     * change it afterwards.
+     */
+    void replace(long[] ids, int count, int start) {
+        clear();
+        mediaIds = ids;
+        queueIds = new long[ids.length];
+        for (int i = 0; i < count; i++) {
+            queueIds[i] = nextQueueId++;
+            positionsByQueueId.put(queueIds[i], i);
+        }
+        size = count;
+        current = count > 0 ? Math.max(0, Math.min(start, count - 1)) : -1;
+        onEdited();
+    }
+
+    void clear() {
+        size = 0;
+        current = -1;
+        positionsByQueueId.clear();
+        onEdited();
+    }
+
+    void add(long mediaId) {
+        insert(size, mediaId);
+    }
+
+    /** Inserts at {@code position} (clamped), shifting the entries behind it. */
+    void insert(int position, long mediaId) {
+        position = Math.max(0, Math.min(position, size));
+        ensureCapacity(size + 1);
+        System.arraycopy(mediaIds, position, mediaIds, position + 1, size - position);
+        System.arraycopy(queueIds, position, queueIds, position + 1, size - position);
+        mediaIds[position] = mediaId;
+        queueIds[position] = nextQueueId++;
+        size++;
+        reindex(position);
+        if (current >= position) {
+            current++;
+        } else if (current < 0) {
+            current = position;
+        }
+        onEdited();
+    }
+
+    /** Removes the first entry for {@code mediaId}. Returns false if there was none. */
+    boolean remove(long mediaId) {
+        for (int i = 0; i < size; i++) {
+            if (mediaIds[i] == mediaId) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every entry whose MediaStore id is in {@code removed}, in one pass. If the current
+     * entry goes, the entry after it becomes current.
+     */
+    boolean removeAll(Set<Long> removed) {
+        int kept = 0;
+        int newCurrent = -1;
+        for (int i = 0; i < size; i++) {
+            if (i == current) {
+                newCurrent = kept;
+            }
+            if (removed.contains(mediaIds[i])) {
+                positionsByQueueId.remove(queueIds[i]);
+            } else {
+                mediaIds[kept] = mediaIds[i];
+                queueIds[kept] = queueIds[i];
+                kept++;
+            }
+        }
+        if (kept == size) {
+            return false;
+        }
+        size = kept;
+        current = size == 0 ? -1 : Math.min(newCurrent, size - 1);
+        reindex(0);
+        onEdited();
+        return true;
+    }
+
+    private void removeAt(int position) {
+        positionsByQueueId.remove(queueIds[position]);
+        System.arraycopy(mediaIds, position + 1, mediaIds, position, size - position - 1);
+        System.arraycopy(queueIds, position + 1, queueIds, position, size - position - 1);
+        size--;
+        reindex(position);
+        if (current > position || current == size) {
+            current--;
+        }
+        if (size == 0) {
+            current = -1;
+        }
+        onEdited();
+    }
+
+    /** Makes the entry with {@code queueId} current. Returns false if it is not in the queue. */
+    boolean skipTo(long queueId) {
+        int position = positionsByQueueId.get(queueId);
+        if (position == LongIntMap.NO_VALUE) {
+            return false;
+        }
+        current = position;
+        if (shuffled) {
+            int slot = slotOf(position);
+            if (slot < shuffleDrawn) {
+                // Played in this pass already; history before and after it stays
+                shuffleIndex = slot;
+            } else {
+                // Drawn now instead of at random, so the rest of the pass is unaffected
+                swapOrder(shuffleDrawn, slot);
+                shuffleIndex = shuffleDrawn++;
+                nextDrawSlot = -1;
+            }
+        }
+        return true;
+    }
+
+    boolean isShuffled() {
+        return shuffled;
+    }
+
+    void setShuffled(boolean shuffled) {
+        if (this.shuffled != shuffled) {
+            this.shuffled = shuffled;
+            shuffleOrder = null;
+            shuffleSlots = null;
+            onEdited();
+        }
+    }
+
+    /**
+     * Position {@link #moveToNext} would make current, without moving. {@code wrap} continues from
+     * the start (or with a new shuffle pass) after the end; otherwise -1 is returned there.
+     */
+    int peekNext(boolean wrap) {
+        if (!shuffled) {
+            return plainNext(wrap);
+        }
+        if (shuffleIndex + 1 < shuffleDrawn) {
+            // Going forward again after going back
+            return orderAt(shuffleIndex + 1);
+        }
+        if (!canDraw(wrap)) {
+            return -1;
+        }
+        return orderAt(nextDrawSlot());
+    }
+
+    /** Makes the next entry current and returns its position, or -1 if there is none. */
+    int moveToNext(boolean wrap) {
+        if (!shuffled) {
+            int position = plainNext(wrap);
+            if (position >= 0) {
+                current = position;
+            }
+            return position;
+        }
+        if (shuffleIndex + 1 < shuffleDrawn) {
+            shuffleIndex++;
+        } else if (canDraw(wrap)) {
+            int drawSlot = nextDrawSlot();
+            if (shuffleDrawn == size) {
+                // Every entry has played: shuffle the same permutation again for another pass
+                shuffleDrawn = 0;
+            }
+            // One Fisher-Yates step: fixes the picked entry in the next slot
+            swapOrder(shuffleDrawn, drawSlot);
+            shuffleIndex = shuffleDrawn++;
+            nextDrawSlot = -1;
+        } else {
+            return -1;
+        }
+        current = orderAt(shuffleIndex);
+        return current;
+    }
+
+    /**
+     * Makes the previous entry current and returns its position, or -1 if there is none. Shuffled,
+     * this walks back through the songs played in this pass.
+     */
+    int moveToPrevious(boolean wrap) {
+        if (size == 0) {
+            return -1;
+        }
+        if (shuffled) {
+            if (shuffleIndex <= 0) {
+                return -1;
+            }
+            shuffleIndex--;
+            current = orderAt(shuffleIndex);
+            return current;
+        }
+        if (current > 0) {
+            current--;
+        } else if (wrap) {
+            current = size - 1;
+        } else {
+            return -1;
+        }
+        return current;
+    }
+
+    private int plainNext(boolean wrap) {
+        if (size == 0) {
+            return -1;
+        }
+        if (current + 1 < size) {
+            return current + 1;
+        }
+        return wrap ? 0 : -1;
+    }
+
+    /** Restarts the shuffle order from the current entry, after the queue changed. */
+    private void onEdited() {
+        if (!shuffled) {
+            return;
+        }
+        shuffleOrder = new int[size];
+        shuffleSlots = new int[size];
+        shuffleDrawn = 0;
+        shuffleIndex = -1;
+        nextDrawSlot = -1;
+        if (current >= 0) {
+            swapOrder(0, current);
+            shuffleDrawn = 1;
+            shuffleIndex = 0;
+        }
+    }
+
+    /** Whether there is an entry left to draw, or a new pass may start. */
+    private boolean canDraw(boolean wrap) {
+        return shuffleDrawn < size || (wrap && size > 0);
+    }
+
+    /**
+     * Slot holding the entry the next draw fixes, picked at random the first time it is asked
+     * for and kept until that draw, so peeking and moving agree.
+     */
+    private int nextDrawSlot() {
+        if (nextDrawSlot < 0) {
+            if (shuffleDrawn < size) {
+                nextDrawSlot = shuffleDrawn + random.nextInt(size - shuffleDrawn);
+            } else {
+                // A new pass. The song that just ended is in the last slot; do not start with it.
+                nextDrawSlot = size > 1 ? random.nextInt(size - 1) : 0;
+            }
+        }
+        return nextDrawSlot;
+    }
+
+    private int orderAt(int slot) {
+        int value = shuffleOrder[slot];
+        return value == 0 ? slot : value - 1;
+    }
+
+    private int slotOf(int position) {
+        int value = shuffleSlots[position];
+        return value == 0 ? position : value - 1;
+    }
+
+    private void swapOrder(int slot1, int slot2) {
+        int position1 = orderAt(slot1);
+        int position2 = orderAt(slot2);
+        shuffleOrder[slot1] = position2 + 1;
+        shuffleOrder[slot2] = position1 + 1;
+        shuffleSlots[position2] = slot1 + 1;
+        shuffleSlots[position1] = slot2 + 1;
+    }
+
+    private void reindex(int from) {
+        for (int i = from; i < size; i++) {
+            positionsByQueueId.put(queueIds[i], i);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mediaIds.length) {
+            int newLength = Math.max(capacity, mediaIds.length * 2);
+            mediaIds = Arrays.copyOf(mediaIds, newLength);
+            queueIds = Arrays.copyOf(queueIds, newLength);
+        }
+    }
+}
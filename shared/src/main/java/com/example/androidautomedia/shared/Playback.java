@@ -0,0 +1,71 @@
+package com.example.androidautomedia.shared;
+
+import android.net.Uri;
+
+/**
+ * A playback engine driven by {@link MyMusicService}'s session callback. Implementations prepare
+ * songs without blocking the caller, can take a next song ahead of time for a gapless handoff, and
+ * report back through {@link Callback}.
+ * <p>
+ * Only the main thread touches it.
+ */
+interface Playback {
+
+    /** All callbacks are delivered on the main thread. */
+    interface Callback {
+        /** The song last passed to {@link #load} is ready, and playing unless paused meanwhile. */
+        void onPrepared(String mediaId);
+
+        /** The song could not be prepared or played. */
+        void onError(String mediaId);
+
+        /** The prepared next song took over from the one that ended. */
+        void onNextTrackStarted(String mediaId);
+
+        /** The current song ended and no next song was ready. */
+        void onCompletion();
+    }
+
+    /**
+     * Starts preparing a song, which plays once ready; {@link Callback#onPrepared} follows. Drops
+     * whatever was set as next. {@code mimeType} is the song's type as MediaStore knows it, or
+     * null; engines that can use it skip probing for the container format.
+     */
+    void load(String mediaId, Uri uri, String mimeType);
+
+    /**
+     * Prepares the song to play after the current one. Does nothing if that song is already the
+     * next one or the current song is still preparing.
+     */
+    void setNext(String mediaId, Uri uri, String mimeType);
+
+    /** Drops the song set with {@link #setNext}, so the current one ends playback. */
+    void clearNext();
+
+    boolean isPreparing();
+
+    /** Whether a song is prepared, playing or paused, so that {@link #setNext} takes effect. */
+    boolean isPrepared();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void seekTo(int position);
+
+    boolean isPlaying();
+
+    /**
+     * Whether the user wants the song playing: true while it plays, and while it prepares or
+     * rebuffers to play, unlike {@link #isPlaying}.
+     */
+    boolean isPlayWhenReady();
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    void release();
+}
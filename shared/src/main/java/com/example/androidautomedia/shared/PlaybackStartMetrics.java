@@ -0,0 +1,70 @@
+package com.example.androidautomedia.shared;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how long songs take from {@link Playback#load} to {@link Playback.Callback#onPrepared},
+ * i.e. until the engine has opened the file, picked an extractor and decoder and started playing,
+ * and keeps the figures per MIME type. Each start is logged with the running average and worst
+ * case of its format, so formats and engines can be compared from logcat.
+ * <p>
+ * Loads superseded by a skip before they were prepared are not counted.
+ * <p>
+ * Only the main thread touches it.
+ */
+final class PlaybackStartMetrics {
+
+    private static final String TAG = "PlaybackStartMetrics";
+    private static final String UNKNOWN_TYPE = "unknown";
+
+    private final String engine;
+    private final Map<String, Stats> statsByType = new HashMap<>();
+    private String loadingMediaId;
+    private String loadingType;
+    private long loadTime;
+
+    PlaybackStartMetrics(String engine) {
+        this.engine = engine;
+    }
+
+    void onLoad(String mediaId, String mimeType) {
+        loadingMediaId = mediaId;
+        loadingType = mimeType != null ? mimeType : UNKNOWN_TYPE;
+        loadTime = SystemClock.elapsedRealtime();
+    }
+
+    void onPrepared(String mediaId) {
+        if (loadingMediaId == null || !loadingMediaId.equals(mediaId)) {
+            return;
+        }
+        long latency = SystemClock.elapsedRealtime() - loadTime;
+        Stats stats = statsByType.get(loadingType);
+        if (stats == null) {
+            stats = new Stats();
+            statsByType.put(loadingType, stats);
+        }
+        stats.count++;
+        stats.totalMs += latency;
+        stats.maxMs = Math.max(stats.maxMs, latency);
+        Log.d(TAG, engine + " started " + loadingType + " in " + latency + " ms (average "
+                + stats.totalMs / stats.count + " ms, max " + stats.maxMs + " ms over " + stats.count + ")");
+        loadingMediaId = null;
+    }
+
+    /** The song being loaded failed; it does not count. */
+    void onError(String mediaId) {
+        if (loadingMediaId != null && loadingMediaId.equals(mediaId)) {
+            loadingMediaId = null;
+        }
+    }
+
+    private static final class Stats {
+        int count;
+        long totalMs;
+        long maxMs;
+    }
+}
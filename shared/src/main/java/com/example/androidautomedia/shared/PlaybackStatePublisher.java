@@ -0,0 +1,128 @@
+package com.example.androidautomedia.shared;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+/**
+ * The one place {@link MyMusicService} publishes its {@link PlaybackStateCompat} from.
+ * <p>
+ * Callers only say what the state is and where playback stands; speed and the available actions
+ * follow from the state. Updates are published on the next turn of the main loop, so several in
+ * a row (pause, then seek, then play) go out as one. A state is only sent if a client could tell
+ * it from the last one: clients extrapolate the position from position, speed and update time,
+ * so a position that matches that extrapolation is not news. Position-only changes, e.g. seeks
+ * while scrubbing, are sent at most every {@link #MIN_POSITION_INTERVAL_MS}.
+ * <p>
+ * Only the main thread touches it.
+ */
+final class PlaybackStatePublisher {
+
+    // Drift smaller than this is within what clients extrapolate anyway
+    private static final long POSITION_TOLERANCE_MS = 100;
+    private static final long MIN_POSITION_INTERVAL_MS = 100;
+    private static final long COMMON_ACTIONS =
+            PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+            PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+            PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM |
+            PlaybackStateCompat.ACTION_SET_REPEAT_MODE |
+            PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE |
+            PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
+            PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH;
+
+    private final MediaSessionCompat mediaSession;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable publishRunnable = this::publish;
+    private int state = PlaybackStateCompat.STATE_NONE;
+    private long position = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+    private long positionTime;
+    private int errorCode;
+    private CharSequence errorMessage;
+    private PlaybackStateCompat published;
+    private long publishedTime;
+
+    PlaybackStatePublisher(MediaSessionCompat mediaSession) {
+        this.mediaSession = mediaSession;
+    }
+
+    /**
+     * Sets the state, with playback at {@code position} ms as of now, or
+     * {@link PlaybackStateCompat#PLAYBACK_POSITION_UNKNOWN}.
+     */
+    void update(int state, long position) {
+        this.state = state;
+        this.position = position;
+        positionTime = SystemClock.elapsedRealtime();
+        errorCode = 0;
+        errorMessage = null;
+        schedule();
+    }
+
+    void updateError(int errorCode, CharSequence errorMessage) {
+        update(PlaybackStateCompat.STATE_ERROR, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN);
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+
+    void release() {
+        handler.removeCallbacks(publishRunnable);
+    }
+
+    private void schedule() {
+        long delay = 0;
+        if (published != null && published.getState() == state) {
+            // At most the position changed; the deadline stays put however often it is updated
+            delay = Math.max(0, publishedTime + MIN_POSITION_INTERVAL_MS - SystemClock.elapsedRealtime());
+        }
+        handler.removeCallbacks(publishRunnable);
+        handler.postDelayed(publishRunnable, delay);
+    }
+
+    private void publish() {
+        long actions = actionsFor(state);
+        float speed = state == PlaybackStateCompat.STATE_PLAYING ? 1.0f : 0.0f;
+        if (published != null
+                && published.getState() == state
+                && published.getActions() == actions
+                && published.getPlaybackSpeed() == speed
+                && published.getErrorCode() == errorCode
+                && TextUtils.equals(published.getErrorMessage(), errorMessage)
+                && Math.abs(extrapolatedPosition(published, positionTime) - position) <= POSITION_TOLERANCE_MS) {
+            return;
+        }
+        PlaybackStateCompat.Builder builder = new PlaybackStateCompat.Builder()
+                .setState(state, position, speed, positionTime)
+                .setActions(actions);
+        if (state == PlaybackStateCompat.STATE_ERROR) {
+            builder.setErrorMessage(errorCode, errorMessage);
+        }
+        published = builder.build();
+        publishedTime = SystemClock.elapsedRealtime();
+        mediaSession.setPlaybackState(published);
+    }
+
+    private static long extrapolatedPosition(PlaybackStateCompat state, long time) {
+        if (state.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN) {
+            return PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
+        }
+        return state.getPosition() + (long) ((time - state.getLastPositionUpdateTime()) * state.getPlaybackSpeed());
+    }
+
+    private static long actionsFor(int state) {
+        switch (state) {
+            case PlaybackStateCompat.STATE_PLAYING:
+                return COMMON_ACTIONS | PlaybackStateCompat.ACTION_PAUSE | PlaybackStateCompat.ACTION_STOP
+                        | PlaybackStateCompat.ACTION_SEEK_TO;
+            case PlaybackStateCompat.STATE_BUFFERING:
+                return COMMON_ACTIONS | PlaybackStateCompat.ACTION_PAUSE | PlaybackStateCompat.ACTION_STOP;
+            case PlaybackStateCompat.STATE_PAUSED:
+                return COMMON_ACTIONS | PlaybackStateCompat.ACTION_PLAY | PlaybackStateCompat.ACTION_STOP
+                        | PlaybackStateCompat.ACTION_SEEK_TO;
+            default:
+                return COMMON_ACTIONS | PlaybackStateCompat.ACTION_PLAY;
+        }
+    }
+}
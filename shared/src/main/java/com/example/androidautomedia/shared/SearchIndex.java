@@ -0,0 +1,374 @@
+package com.example.androidautomedia.shared;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable token index over the title, artist and album of every song, answering voice and
+ * text searches without walking the library.
+ * <p>
+ * Text is folded before indexing and searching: accents are stripped, case is lowered and anything
+ * but letters and digits separates tokens (apostrophes are dropped, so "don't" matches "dont").
+ * Each field keeps its distinct tokens in a sorted array with, per token, the ascending list of
+ * songs containing it. A search looks up the most selective query token by binary search (the last
+ * token as a prefix, since voice and typed queries are often cut short) and then filters that
+ * short list by the other tokens, so it costs O(log tokens + matches) rather than O(library).
+ * <p>
+ * Matches are ranked by where each query token was found (title over artist over album) and
+ * whether it was a whole token or only a prefix, then by title.
+ * <p>
+ * A raw query reading "X by Y", as voice assistants pass it on without splitting it into fields,
+ * is first tried as title X by artist Y, and only searched token by token if that finds nothing.
+ * <p>
+ * Built on {@link LibraryLoader}'s worker from a library snapshot, so it may briefly lag behind
+ * the library. Safe to use from any thread.
+ */
+final class SearchIndex {
+
+    static final SearchIndex EMPTY = build(SongColumns.EMPTY);
+
+    private static final int TITLE = 0;
+    private static final int ARTIST = 1;
+    private static final int ALBUM = 2;
+    private static final int FIELD_COUNT = 3;
+    private static final int ALL_FIELDS = (1 << FIELD_COUNT) - 1;
+    private static final int[] FIELD_WEIGHTS = {3, 2, 1};
+    private static final int NO_MATCH = 0;
+    private static final int PREFIX_MATCH = 1;
+    private static final int TOKEN_MATCH = 2;
+    private static final String BY = " by ";
+
+    // Songs in snapshot (title) order, so ascending postings are title order too; matches are
+    // handed out as columns
+    private final SongColumns songs;
+    // Folded text per field and song, tokens separated by single spaces
+    private final String[][] folded;
+    private final String[][] tokens;
+    private final int[][] postingStarts;
+    private final int[][] postings;
+
+    private SearchIndex(SongColumns songs, String[][] folded, String[][] tokens, int[][] postingStarts,
+                        int[][] postings) {
+        this.songs = songs;
+        this.folded = folded;
+        this.tokens = tokens;
+        this.postingStarts = postingStarts;
+        this.postings = postings;
+    }
+
+    /** Indexes {@code songs}, which should be in title order. */
+    static SearchIndex build(SongColumns songs) {
+        int count = songs.size();
+        String[][] folded = new String[FIELD_COUNT][count];
+        for (int i = 0; i < count; i++) {
+            folded[TITLE][i] = fold(songs.title(i));
+            folded[ARTIST][i] = fold(songs.artist(i));
+            folded[ALBUM][i] = fold(songs.album(i));
+        }
+        String[][] tokens = new String[FIELD_COUNT][];
+        int[][] postingStarts = new int[FIELD_COUNT][];
+        int[][] postings = new int[FIELD_COUNT][];
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            Map<String, DocList> docsByToken = new HashMap<>();
+            int total = 0;
+            for (int doc = 0; doc < count; doc++) {
+                String text = folded[field][doc];
+                if (text.isEmpty()) {
+                    continue;
+                }
+                for (String token : text.split(" ")) {
+                    DocList docs = docsByToken.get(token);
+                    if (docs == null) {
+                        docs = new DocList();
+                        docsByToken.put(token, docs);
+                    }
+                    if (docs.add(doc)) {
+                        total++;
+                    }
+                }
+            }
+            String[] sorted = docsByToken.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+            int[] starts = new int[sorted.length + 1];
+            int[] docs = new int[total];
+            int offset = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                DocList list = docsByToken.get(sorted[i]);
+                starts[i] = offset;
+                System.arraycopy(list.docs, 0, docs, offset, list.size);
+                offset += list.size;
+            }
+            starts[sorted.length] = offset;
+            tokens[field] = sorted;
+            postingStarts[field] = starts;
+            postings[field] = docs;
+        }
+        return new SearchIndex(songs, folded, tokens, postingStarts, postings);
+    }
+
+    int size() {
+        return songs.size();
+    }
+
+    /**
+     * Returns up to {@code limit} songs matching every token of {@code query} in any field and
+     * every token of {@code title}, {@code artist} and {@code album} in that field, best first.
+     * Null or empty parts are ignored; if all are, nothing matches.
+     */
+    SongColumns search(String query, String title, String artist, String album, int limit) {
+        return songs.select(rank(query, title, artist, album, limit));
+    }
+
+    /** Like {@link #search}, but returns the MediaStore ids of the songs, building none of them. */
+    long[] searchIds(String query, String title, String artist, String album, int limit) {
+        int[] docs = rank(query, title, artist, album, limit);
+        long[] ids = new long[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            ids[i] = songs.id(docs[i]);
+        }
+        return ids;
+    }
+
+    private int[] rank(String query, String title, String artist, String album, int limit) {
+        if (isEmpty(title) && isEmpty(artist) && isEmpty(album)) {
+            // "X by Y": try each " by " from the last, since titles contain the word more often
+            // than artist names do
+            String folded = fold(query);
+            for (int split = folded.lastIndexOf(BY); split > 0; split = folded.lastIndexOf(BY, split - 1)) {
+                int[] docs = rankTerms(null, folded.substring(0, split),
+                        folded.substring(split + BY.length()), null, limit);
+                if (docs.length > 0) {
+                    return docs;
+                }
+            }
+        }
+        return rankTerms(query, title, artist, album, limit);
+    }
+
+    /** The snapshot indices of up to {@code limit} matches, best first. */
+    private int[] rankTerms(String query, String title, String artist, String album, int limit) {
+        Term[] terms = new Term[0];
+        terms = addTerms(terms, tokensOf(query), ALL_FIELDS);
+        terms = addTerms(terms, tokensOf(title), 1 << TITLE);
+        terms = addTerms(terms, tokensOf(artist), 1 << ARTIST);
+        terms = addTerms(terms, tokensOf(album), 1 << ALBUM);
+        if (terms.length == 0 || songs.isEmpty()) {
+            return new int[0];
+        }
+        // Look up the most selective term, then check the others against its few matches
+        Term lookup = terms[0];
+        for (Term term : terms) {
+            if (term.estimate < lookup.estimate) {
+                lookup = term;
+            }
+        }
+        int[] candidates = lookup(lookup);
+        // Score in the high half, song in the low half: sorting puts the best first, then title
+        // order
+        long[] ranked = new long[candidates.length];
+        int matched = 0;
+        for (int doc : candidates) {
+            int score = score(doc, terms);
+            if (score > 0) {
+                ranked[matched++] = ((long) (Integer.MAX_VALUE - score) << 32) | doc;
+            }
+        }
+        Arrays.sort(ranked, 0, matched);
+        int[] docs = new int[Math.min(matched, limit)];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = (int) ranked[i];
+        }
+        return docs;
+    }
+
+    private Term[] addTerms(Term[] terms, String[] values, int fields) {
+        if (values.length == 0) {
+            return terms;
+        }
+        Term[] all = Arrays.copyOf(terms, terms.length + values.length);
+        for (int i = 0; i < values.length; i++) {
+            Term term = new Term(values[i], fields, i == values.length - 1);
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                if ((fields & (1 << field)) != 0) {
+                    int[] range = tokenRange(field, term);
+                    term.estimate += postingStarts[field][range[1]] - postingStarts[field][range[0]];
+                }
+            }
+            all[terms.length + i] = term;
+        }
+        return all;
+    }
+
+    /** The sorted, distinct songs matching {@code term}. */
+    private int[] lookup(Term term) {
+        int[] docs = new int[term.estimate];
+        int size = 0;
+        int sources = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((term.fields & (1 << field)) == 0) {
+                continue;
+            }
+            int[] range = tokenRange(field, term);
+            int from = postingStarts[field][range[0]];
+            int to = postingStarts[field][range[1]];
+            System.arraycopy(postings[field], from, docs, size, to - from);
+            size += to - from;
+            sources += range[1] - range[0];
+        }
+        if (sources > 1) {
+            // Several posting lists: merge them into one ascending, distinct list
+            Arrays.sort(docs, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || docs[distinct - 1] != docs[i]) {
+                    docs[distinct++] = docs[i];
+                }
+            }
+            size = distinct;
+        }
+        return size == docs.length ? docs : Arrays.copyOf(docs, size);
+    }
+
+    /** Index range [from, to) of the tokens of {@code field} that {@code term} matches. */
+    private int[] tokenRange(int field, Term term) {
+        String[] sorted = tokens[field];
+        int from = lowerBound(sorted, term.token);
+        int to;
+        if (term.prefix) {
+            // Every token starting with the prefix sorts before prefix + U+FFFF
+            to = lowerBound(sorted, term.token + '\uffff');
+        } else {
+            to = from < sorted.length && sorted[from].equals(term.token) ? from + 1 : from;
+        }
+        return new int[] {from, to};
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sums, over the terms, the weight of the best field each was found in, doubled for a whole
+     * token. Returns 0 if a term is missing.
+     */
+    private int score(int doc, Term[] terms) {
+        int score = 0;
+        for (Term term : terms) {
+            int best = 0;
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                if ((term.fields & (1 << field)) == 0) {
+                    continue;
+                }
+                int match = match(folded[field][doc], term.token);
+                if (match == TOKEN_MATCH || (match == PREFIX_MATCH && term.prefix)) {
+                    best = Math.max(best, FIELD_WEIGHTS[field] * 2 - (match == PREFIX_MATCH ? 1 : 0));
+                }
+            }
+            if (best == 0) {
+                return 0;
+            }
+            score += best;
+        }
+        return score;
+    }
+
+    /** How {@code token} occurs in folded {@code text}: as a whole token, a token's prefix, or not. */
+    private static int match(String text, String token) {
+        int match = NO_MATCH;
+        int index = text.indexOf(token);
+        while (index >= 0) {
+            int end = index + token.length();
+            if (index == 0 || text.charAt(index - 1) == ' ') {
+                if (end == text.length() || text.charAt(end) == ' ') {
+                    return TOKEN_MATCH;
+                }
+                match = PREFIX_MATCH;
+            }
+            index = text.indexOf(token, index + 1);
+        }
+        return match;
+    }
+
+    private static boolean isEmpty(String text) {
+        return text == null || text.isEmpty();
+    }
+
+    private static String[] tokensOf(String text) {
+        String folded = fold(text);
+        return folded.isEmpty() ? new String[0] : folded.split(" ");
+    }
+
+    /**
+     * Lower-cases {@code text}, strips accents and apostrophes and turns every other run of
+     * characters that are not letters or digits into a single space.
+     */
+    static String fold(CharSequence text) {
+        if (text == null || text.length() == 0) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        boolean separated = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK || c == '\'' || c == '\u2019') {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                folded.append(Character.toLowerCase(c));
+                separated = false;
+            } else if (!separated) {
+                folded.append(' ');
+                separated = true;
+            }
+        }
+        int length = folded.length();
+        if (length > 0 && folded.charAt(length - 1) == ' ') {
+            folded.setLength(length - 1);
+        }
+        return folded.toString();
+    }
+
+    private static final class Term {
+        final String token;
+        final int fields;
+        final boolean prefix;
+        int estimate;
+
+        Term(String token, int fields, boolean prefix) {
+            this.token = token;
+            this.fields = fields;
+            this.prefix = prefix;
+        }
+    }
+
+    /** The songs holding one token, ascending, while building. */
+    private static final class DocList {
+        int[] docs = new int[4];
+        int size;
+
+        /** Adds {@code doc} unless it was the last one added. */
+        boolean add(int doc) {
+            if (size > 0 && docs[size - 1] == doc) {
+                return false;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.androidautomedia.shared;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+
+import androidx.media.MediaBrowserServiceCompat.Result;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs browse searches for {@link MyMusicService} on a worker of their own, so a query typed into
+ * the car's search UI never waits behind a library scan on {@link LibraryLoader}'s worker.
+ * <p>
+ * Each client has at most one search in flight. A new query from the same client (the next
+ * keystroke) cancels the previous one, which is answered with null if it had not started; one
+ * already running is short and simply completes. Searches that start playback are handled the same
+ * way, only the latest one being answered.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+final class Searcher {
+
+    private static final String TAG = "Searcher";
+    private static final int QUEUE_CAPACITY = 8;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            runnable -> new Thread(runnable, "Searcher"));
+    private final Map<String, FutureTask<Void>> searches = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Counts searches for playback; only the latest one's result is handed over
+    private int playbackSearch;
+
+    Searcher() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code search} on the worker and sends its outcome to the already detached
+     * {@code result}, after cancelling the previous search of {@code clientKey}.
+     */
+    void search(String clientKey, Callable<List<MediaBrowserCompat.MediaItem>> search,
+                Result<List<MediaBrowserCompat.MediaItem>> result) {
+        cancel(clientKey);
+        FutureTask<Void> task = new FutureTask<Void>(() -> {
+            result.sendResult(search.call());
+            return null;
+        }) {
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (CancellationException | ExecutionException | InterruptedException e) {
+                    // Superseded before it ran, or failed; the client waits on every result it
+                    // asked for, and null tells it this one has none
+                    result.sendResult(null);
+                }
+            }
+        };
+        searches.put(clientKey, task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Search for " + clientKey + " rejected: " + e.getMessage());
+            searches.remove(clientKey);
+            result.sendResult(null);
+        }
+    }
+
+    /**
+     * Runs {@code search} on the worker and hands the MediaStore ids it finds to {@code callback}
+     * on the main thread, unless another such search was started meanwhile.
+     */
+    void searchForPlayback(Callable<long[]> search, Consumer<long[]> callback) {
+        int request = ++playbackSearch;
+        try {
+            executor.execute(() -> {
+                long[] ids;
+                try {
+                    ids = search.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Search for playback failed: " + e.getMessage());
+                    ids = new long[0];
+                }
+                long[] found = ids;
+                mainHandler.post(() -> {
+                    if (request == playbackSearch) {
+                        callback.accept(found);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Search for playback rejected: " + e.getMessage());
+        }
+    }
+
+    private void cancel(String clientKey) {
+        FutureTask<Void> previous = searches.remove(clientKey);
+        if (previous != null && executor.remove(previous)) {
+            previous.cancel(false);
+        }
+    }
+
+    void shutdown() {
+        searches.clear();
+        mainHandler.removeCallbacksAndMessages(null);
+        executor.shutdownNow();
+    }
+}
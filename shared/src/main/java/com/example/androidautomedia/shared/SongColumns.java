@@ -0,0 +1,336 @@
+package com.example.androidautomedia.shared;
+
+import androidx.media3.common.MediaItem;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * An immutable run of songs, one array per field: ids, dates and durations as longs, artists,
+ * albums, genres, folders and MIME types as {@link StringPool} codes, titles as ranges of a shared
+ * char buffer. Copied out of {@link MusicLibrary}, or filled row by row by a {@link Builder} when
+ * songs are read from MediaStore or the on-disk index.
+ * <p>
+ * It is a list of {@link MediaItem}s, but items are only built when asked for, one at a time, so
+ * handing the whole library to the loader thread or a UI costs a few primitive arrays rather than
+ * an object graph per song. Each {@link #get} builds a new item; callers that keep items should
+ * keep the ones they need only.
+ * <p>
+ * Safe to use from any thread.
+ */
+final class SongColumns extends AbstractList<MediaItem> implements RandomAccess {
+
+    static final SongColumns EMPTY = new Builder(0).build();
+
+    private final int size;
+    private final long[] ids;
+    private final long[] albumIds;
+    private final long[] datesAdded;
+    private final long[] datesModified;
+    private final long[] generations;
+    private final long[] durations;
+    private final int[] tracks;
+    // Titles are titleLengths[i] chars of titleChars from titleStarts[i]; a length of -1 is null
+    private final char[] titleChars;
+    private final int[] titleStarts;
+    private final int[] titleLengths;
+    private final byte[][] titleKeys;
+    private final int[] artists;
+    private final int[] albums;
+    private final int[] genres;
+    private final int[] folders;
+    private final int[] mimeTypes;
+    private final String[] poolValues;
+    private final byte[][] poolKeys;
+
+    SongColumns(int size, long[] ids, long[] albumIds, long[] datesAdded, long[] datesModified,
+                long[] generations, long[] durations, int[] tracks, char[] titleChars, int[] titleStarts,
+                int[] titleLengths, byte[][] titleKeys, int[] artists, int[] albums, int[] genres,
+                int[] folders, int[] mimeTypes, String[] poolValues, byte[][] poolKeys) {
+        this.size = size;
+        this.ids = ids;
+        this.albumIds = albumIds;
+        this.datesAdded = datesAdded;
+        this.datesModified = datesModified;
+        this.generations = generations;
+        this.durations = durations;
+        this.tracks = tracks;
+        this.titleChars = titleChars;
+        this.titleStarts = titleStarts;
+        this.titleLengths = titleLengths;
+        this.titleKeys = titleKeys;
+        this.artists = artists;
+        this.albums = albums;
+        this.genres = genres;
+        this.folders = folders;
+        this.mimeTypes = mimeTypes;
+        this.poolValues = poolValues;
+        this.poolKeys = poolKeys;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public MediaItem get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return MediaStoreScanner.buildMediaItem(ids[index], title(index), artist(index), album(index),
+                albumIds[index], genre(index), folder(index), datesAdded[index], datesModified[index],
+                generations[index], durations[index], tracks[index], mimeType(index), titleKeys[index],
+                artistKey(index), albumKey(index));
+    }
+
+    /** The songs at the given indices, in that order. Shares this one's titles and strings. */
+    SongColumns select(int[] indices) {
+        int count = indices.length;
+        long[] selectedIds = new long[count];
+        long[] selectedAlbumIds = new long[count];
+        long[] selectedDatesAdded = new long[count];
+        long[] selectedDatesModified = new long[count];
+        long[] selectedGenerations = new long[count];
+        long[] selectedDurations = new long[count];
+        int[] selectedTracks = new int[count];
+        int[] selectedTitleStarts = new int[count];
+        int[] selectedTitleLengths = new int[count];
+        byte[][] selectedTitleKeys = new byte[count][];
+        int[] selectedArtists = new int[count];
+        int[] selectedAlbums = new int[count];
+        int[] selectedGenres = new int[count];
+        int[] selectedFolders = new int[count];
+        int[] selectedMimeTypes = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            selectedIds[i] = ids[index];
+            selectedAlbumIds[i] = albumIds[index];
+            selectedDatesAdded[i] = datesAdded[index];
+            selectedDatesModified[i] = datesModified[index];
+            selectedGenerations[i] = generations[index];
+            selectedDurations[i] = durations[index];
+            selectedTracks[i] = tracks[index];
+            selectedTitleStarts[i] = titleStarts[index];
+            selectedTitleLengths[i] = titleLengths[index];
+            selectedTitleKeys[i] = titleKeys[index];
+            selectedArtists[i] = artists[index];
+            selectedAlbums[i] = albums[index];
+            selectedGenres[i] = genres[index];
+            selectedFolders[i] = folders[index];
+            selectedMimeTypes[i] = mimeTypes[index];
+        }
+        return new SongColumns(count, selectedIds, selectedAlbumIds, selectedDatesAdded, selectedDatesModified,
+                selectedGenerations, selectedDurations, selectedTracks, titleChars, selectedTitleStarts,
+                selectedTitleLengths, selectedTitleKeys, selectedArtists, selectedAlbums, selectedGenres,
+                selectedFolders, selectedMimeTypes, poolValues, poolKeys);
+    }
+
+    long id(int index) {
+        return ids[index];
+    }
+
+    long albumId(int index) {
+        return albumIds[index];
+    }
+
+    long dateAdded(int index) {
+        return datesAdded[index];
+    }
+
+    long dateModified(int index) {
+        return datesModified[index];
+    }
+
+    long generation(int index) {
+        return generations[index];
+    }
+
+    /** In ms, 0 if MediaStore does not know. */
+    long duration(int index) {
+        return durations[index];
+    }
+
+    /** As MediaStore has it: disc number * 1000 + track number, 0 if unknown. */
+    int track(int index) {
+        return tracks[index];
+    }
+
+    String title(int index) {
+        int length = titleLengths[index];
+        return length < 0 ? null : new String(titleChars, titleStarts[index], length);
+    }
+
+    /** The length of the title at {@code index}, -1 if it is null. */
+    int titleLength(int index) {
+        return titleLengths[index];
+    }
+
+    /** Copies the title at {@code index} into {@code dest} from {@code destPos}, without a String. */
+    void copyTitle(int index, char[] dest, int destPos) {
+        System.arraycopy(titleChars, titleStarts[index], dest, destPos, Math.max(0, titleLengths[index]));
+    }
+
+    byte[] titleKey(int index) {
+        return titleKeys[index];
+    }
+
+    /** Whether the title at {@code index} equals the one at {@code otherIndex} of {@code other}. */
+    boolean titleEquals(int index, SongColumns other, int otherIndex) {
+        int length = titleLengths[index];
+        if (length != other.titleLengths[otherIndex]) {
+            return false;
+        }
+        int start = titleStarts[index];
+        int otherStart = other.titleStarts[otherIndex];
+        if (titleChars == other.titleChars && start == otherStart) {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            if (titleChars[start + i] != other.titleChars[otherStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String artist(int index) {
+        return StringPool.get(poolValues, artists[index]);
+    }
+
+    byte[] artistKey(int index) {
+        return StringPool.key(poolKeys, artists[index]);
+    }
+
+    String album(int index) {
+        return StringPool.get(poolValues, albums[index]);
+    }
+
+    byte[] albumKey(int index) {
+        return StringPool.key(poolKeys, albums[index]);
+    }
+
+    String genre(int index) {
+        return StringPool.get(poolValues, genres[index]);
+    }
+
+    String folder(int index) {
+        return StringPool.get(poolValues, folders[index]);
+    }
+
+    String mimeType(int index) {
+        return StringPool.get(poolValues, mimeTypes[index]);
+    }
+
+    /**
+     * Fills columns one song at a time, for readers of a cursor or file. Collation keys are
+     * computed as songs are added, on the reader's thread; artist and album keys once per distinct
+     * value. Not thread safe, and not to be used after {@link #build()}.
+     */
+    static final class Builder {
+
+        private int size;
+        private long[] ids;
+        private long[] albumIds;
+        private long[] datesAdded;
+        private long[] datesModified;
+        private long[] generations;
+        private long[] durations;
+        private int[] tracks;
+        private char[] titleChars;
+        private int titleCharCount;
+        private int[] titleStarts;
+        private int[] titleLengths;
+        private byte[][] titleKeys;
+        private int[] artists;
+        private int[] albums;
+        private int[] genres;
+        private int[] folders;
+        private int[] mimeTypes;
+        private final StringPool strings = new StringPool();
+
+        /** {@code capacity} is a hint; the builder grows past it as needed. */
+        Builder(int capacity) {
+            capacity = Math.max(1, capacity);
+            ids = new long[capacity];
+            albumIds = new long[capacity];
+            datesAdded = new long[capacity];
+            datesModified = new long[capacity];
+            generations = new long[capacity];
+            durations = new long[capacity];
+            tracks = new int[capacity];
+            titleChars = new char[capacity * 16];
+            titleStarts = new int[capacity];
+            titleLengths = new int[capacity];
+            titleKeys = new byte[capacity][];
+            artists = new int[capacity];
+            albums = new int[capacity];
+            genres = new int[capacity];
+            folders = new int[capacity];
+            mimeTypes = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long id, String title, String artist, String album, long albumId, String genre,
+                 String folder, long dateAdded, long dateModified, long generation, long duration,
+                 int track, String mimeType) {
+            if (size == ids.length) {
+                grow(size * 2);
+            }
+            int index = size++;
+            ids[index] = id;
+            albumIds[index] = albumId;
+            datesAdded[index] = dateAdded;
+            datesModified[index] = dateModified;
+            generations[index] = generation;
+            durations[index] = duration;
+            tracks[index] = track;
+            if (title == null) {
+                titleLengths[index] = -1;
+            } else {
+                int length = title.length();
+                if (titleCharCount + length > titleChars.length) {
+                    titleChars = Arrays.copyOf(titleChars, Math.max(titleChars.length * 2, titleCharCount + length));
+                }
+                title.getChars(0, length, titleChars, titleCharCount);
+                titleStarts[index] = titleCharCount;
+                titleLengths[index] = length;
+                titleCharCount += length;
+            }
+            titleKeys[index] = SortKeys.of(title);
+            artists[index] = strings.internWithKey(artist);
+            albums[index] = strings.internWithKey(album);
+            genres[index] = strings.intern(genre, null);
+            folders[index] = strings.intern(folder, null);
+            mimeTypes[index] = strings.intern(mimeType, null);
+        }
+
+        SongColumns build() {
+            return new SongColumns(size, ids, albumIds, datesAdded, datesModified, generations, durations,
+                    tracks, titleChars, titleStarts, titleLengths, titleKeys, artists, albums, genres,
+                    folders, mimeTypes, strings.values(), strings.keys());
+        }
+
+        private void grow(int capacity) {
+            ids = Arrays.copyOf(ids, capacity);
+            albumIds = Arrays.copyOf(albumIds, capacity);
+            datesAdded = Arrays.copyOf(datesAdded, capacity);
+            datesModified = Arrays.copyOf(datesModified, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+            tracks = Arrays.copyOf(tracks, capacity);
+            titleStarts = Arrays.copyOf(titleStarts, capacity);
+            titleLengths = Arrays.copyOf(titleLengths, capacity);
+            titleKeys = Arrays.copyOf(titleKeys, capacity);
+            artists = Arrays.copyOf(artists, capacity);
+            albums = Arrays.copyOf(albums, capacity);
+            genres = Arrays.copyOf(genres, capacity);
+            folders = Arrays.copyOf(folders, capacity);
+            mimeTypes = Arrays.copyOf(mimeTypes, capacity);
+        }
+    }
+}
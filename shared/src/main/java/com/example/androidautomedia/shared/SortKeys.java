@@ -0,0 +1,45 @@
+package com.example.androidautomedia.shared;
+
+import java.text.Collator;
+
+/**
+ * Pre-computed collation keys for sorting the library. Keys are computed once when a song is read
+ * and then compared as plain bytes, which is much cheaper than locale-aware string comparison on
+ * every sort step.
+ * <p>
+ * Keys use {@link Collator#PRIMARY} strength, so case and accents are ignored the way a user
+ * expects. They are only comparable with keys from the same locale, which is fine as they are
+ * never persisted.
+ */
+final class SortKeys {
+
+    static final byte[] EMPTY = new byte[0];
+
+    private static final ThreadLocal<Collator> COLLATOR = ThreadLocal.withInitial(() -> {
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.PRIMARY);
+        return collator;
+    });
+
+    private SortKeys() {
+    }
+
+    static byte[] of(CharSequence value) {
+        if (value == null || value.length() == 0) {
+            return EMPTY;
+        }
+        return COLLATOR.get().getCollationKey(value.toString()).toByteArray();
+    }
+
+    /** Compares two keys as unsigned bytes. */
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int result = (a[i] & 0xff) - (b[i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.androidautomedia.shared;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers distinct strings, so a column of mostly repeated values (artists, albums, genres,
+ * folders) is stored as ints and each value exists once. A value can carry its collation key,
+ * computed once per value instead of once per song.
+ * <p>
+ * Codes are never reused and values never change, so the arrays returned by {@link #values()} and
+ * {@link #keys()} can be handed to other threads as they are: later additions only fill slots
+ * past the codes handed out so far, or go to a new array. Values of removed songs stay in the
+ * pool; it grows with the distinct values seen, which is small next to the song count.
+ * <p>
+ * Only one thread adds to a pool: the main thread for the library's, the reading thread for a
+ * {@link SongColumns.Builder}'s.
+ */
+final class StringPool {
+
+    /** The code of null. */
+    static final int NULL = -1;
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private String[] values = new String[16];
+    private byte[][] keys = new byte[16][];
+    private int size;
+
+    /** The code of {@code value}, added if new, with {@code key} as its collation key if given. */
+    int intern(String value, byte[] key) {
+        if (value == null) {
+            return NULL;
+        }
+        Integer code = codes.get(value);
+        if (code == null) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            code = size++;
+            values[code] = value;
+            codes.put(value, code);
+        }
+        if (key != null && keys[code] == null) {
+            keys[code] = key;
+        }
+        return code;
+    }
+
+    /** As {@link #intern}, computing the collation key only for a value that has none yet. */
+    int internWithKey(String value) {
+        int code = intern(value, null);
+        if (code != NULL && keys[code] == null) {
+            keys[code] = SortKeys.of(value);
+        }
+        return code;
+    }
+
+    static String get(String[] values, int code) {
+        return code == NULL ? null : values[code];
+    }
+
+    static byte[] key(byte[][] keys, int code) {
+        byte[] key = code == NULL ? null : keys[code];
+        return key != null ? key : SortKeys.EMPTY;
+    }
+
+    String[] values() {
+        return values;
+    }
+
+    byte[][] keys() {
+        return keys;
+    }
+}
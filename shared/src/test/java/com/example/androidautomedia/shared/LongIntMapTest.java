@@ -0,0 +1,102 @@
+package com.example.androidautomedia.shared;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LongIntMapTest {
+
+    @Test
+    public void getOfMissingKeyIsNoValue() {
+        LongIntMap map = new LongIntMap();
+        assertEquals(LongIntMap.NO_VALUE, map.get(42));
+        assertFalse(map.containsKey(42));
+        assertEquals(LongIntMap.NO_VALUE, map.remove(42));
+    }
+
+    @Test
+    public void putReplacesExistingValue() {
+        LongIntMap map = new LongIntMap();
+        map.put(7, 1);
+        map.put(7, 2);
+        assertEquals(1, map.size());
+        assertEquals(2, map.get(7));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        LongIntMap map = new LongIntMap(4);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(i * 31L, i);
+        }
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(i * 31L));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsReservedKey() {
+        new LongIntMap().put(Long.MIN_VALUE, 0);
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        LongIntMap map = new LongIntMap();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(map.containsKey(i));
+        }
+    }
+
+    /**
+     * Random puts and removes against a HashMap. Keys come from a small range so probe runs get
+     * long and collide, which exercises backward-shift deletion across wrapped runs and resizes.
+     */
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            LongIntMap map = new LongIntMap(random.nextInt(64));
+            Map<Long, Integer> expected = new HashMap<>();
+            List<Long> keys = new ArrayList<>();
+            int keyRange = 16 + random.nextInt(4096);
+            for (int step = 0; step < 20_000; step++) {
+                long key = random.nextBoolean() && !keys.isEmpty()
+                        ? keys.get(random.nextInt(keys.size()))
+                        : random.nextInt(keyRange) - keyRange / 2;
+                int operation = random.nextInt(10);
+                if (operation < 5) {
+                    int value = random.nextInt(Integer.MAX_VALUE);
+                    map.put(key, value);
+                    if (expected.put(key, value) == null) {
+                        keys.add(key);
+                    }
+                } else if (operation < 8) {
+                    Integer removed = expected.remove(key);
+                    assertEquals(removed != null ? removed : LongIntMap.NO_VALUE, map.remove(key));
+                    keys.remove(key);
+                } else {
+                    Integer value = expected.get(key);
+                    assertEquals(value != null ? value : LongIntMap.NO_VALUE, map.get(key));
+                    assertEquals(value != null, map.containsKey(key));
+                }
+                assertEquals(expected.size(), map.size());
+            }
+            for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+                assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+            }
+        }
+    }
+}
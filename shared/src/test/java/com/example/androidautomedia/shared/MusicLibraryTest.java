@@ -0,0 +1,257 @@
+package com.example.androidautomedia.shared;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MusicLibraryTest {
+
+    /** A test song; only the fields the library orders by vary. */
+    private static final class Song {
+        final long id;
+        final String title;
+        final String album;
+        final long albumId;
+        final int track;
+
+        Song(long id, String title, String album, long albumId, int track) {
+            this.id = id;
+            this.title = title;
+            this.album = album;
+            this.albumId = albumId;
+            this.track = track;
+        }
+
+        Song(long id, String title) {
+            this(id, title, "Album", 1, 0);
+        }
+    }
+
+    private static SongColumns columns(Song... songs) {
+        SongColumns.Builder builder = new SongColumns.Builder(songs.length);
+        for (Song song : songs) {
+            builder.add(song.id, song.title, "Artist", song.album, song.albumId, null, null, 0, 0, 0, 0,
+                    song.track, "audio/mpeg");
+        }
+        return builder.build();
+    }
+
+    private static Set<String> ids(long... ids) {
+        Set<String> set = new HashSet<>();
+        for (long id : ids) {
+            set.add(String.valueOf(id));
+        }
+        return set;
+    }
+
+    private static List<String> titles(SongColumns songs) {
+        List<String> titles = new ArrayList<>();
+        for (int i = 0; i < songs.size(); i++) {
+            titles.add(songs.title(i));
+        }
+        return titles;
+    }
+
+    @Test
+    public void pagesAreMergedIntoTitleOrder() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "Charlie"), new Song(2, "alpha")));
+        library.append(columns(new Song(3, "Bravo"), new Song(4, "Delta"), new Song(5, "\u00c9cho")));
+        assertEquals(5, library.size());
+        assertArrayEquals(new long[] {2, 3, 1, 4, 5}, library.ids(MusicLibrary.SortOrder.TITLE));
+        assertEquals(0, library.indexOf(2));
+        assertEquals(2, library.indexOf("1"));
+        assertEquals(-1, library.indexOf(6));
+        assertEquals(-1, library.indexOf("not an id"));
+    }
+
+    @Test
+    public void equalTitlesAreOrderedById() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(9, "Same"), new Song(3, "Same")));
+        library.append(columns(new Song(5, "Same")));
+        assertArrayEquals(new long[] {3, 5, 9}, library.ids(MusicLibrary.SortOrder.TITLE));
+    }
+
+    @Test
+    public void rowsPagedTwiceAreSkipped() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "One"), new Song(2, "Two")));
+        library.append(columns(new Song(2, "Two"), new Song(3, "Three")));
+        assertEquals(3, library.size());
+        assertArrayEquals(new long[] {1, 3, 2}, library.ids(MusicLibrary.SortOrder.TITLE));
+    }
+
+    @Test
+    public void albumOrderIsAlbumThenTrackThenTitle() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(
+                new Song(1, "Last", "B", 20, 2),
+                new Song(2, "First", "B", 20, 1),
+                new Song(3, "Untracked", "B", 20, 0),
+                new Song(4, "Only", "A", 10, 5)));
+        assertArrayEquals(new long[] {4, 2, 1, 3}, library.ids(MusicLibrary.SortOrder.ALBUM));
+        // Kept up to date once built
+        library.append(columns(new Song(5, "Middle", "B", 20, 1)));
+        assertArrayEquals(new long[] {4, 2, 5, 1, 3}, library.ids(MusicLibrary.SortOrder.ALBUM));
+        assertEquals(3, library.indexOf(MusicLibrary.SortOrder.ALBUM, 1));
+        assertEquals(1, library.idAt(MusicLibrary.SortOrder.ALBUM, 3));
+    }
+
+    @Test
+    public void removingASongMovesTheLastSlotIntoItsPlace() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(
+                new Song(1, "A", "X", 100, 0),
+                new Song(2, "B", "Y", 200, 0),
+                new Song(3, "C", "Z", 300, 0)));
+        assertTrue(library.applyDelta(SongColumns.EMPTY, ids(1)));
+        assertEquals(2, library.size());
+        assertFalse(library.contains(1));
+        assertEquals(MusicLibrary.NO_ALBUM, library.albumIdOf(1));
+        // Song 3 now sits in song 1's old slot; everything about it must have moved along
+        assertEquals(300, library.albumIdOf(3));
+        assertEquals(200, library.albumIdOf(2));
+        assertArrayEquals(new long[] {2, 3}, library.ids(MusicLibrary.SortOrder.TITLE));
+        assertEquals(1, library.indexOf(3));
+        assertEquals(Arrays.asList("B", "C"), titles(library.snapshot()));
+    }
+
+    @Test
+    public void removingEverySongEmptiesTheLibrary() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "A"), new Song(2, "B")));
+        library.applyDelta(SongColumns.EMPTY, ids(2, 1, 7));
+        assertTrue(library.isEmpty());
+        assertArrayEquals(new long[0], library.ids(MusicLibrary.SortOrder.TITLE));
+    }
+
+    @Test
+    public void changedSongsMoveToTheirNewPlace() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "Alpha"), new Song(2, "Bravo"), new Song(3, "Charlie")));
+        library.ids(MusicLibrary.SortOrder.ALBUM);
+        assertTrue(library.applyDelta(columns(new Song(1, "Zulu", "Album", 1, 0)), Collections.emptySet()));
+        assertEquals(3, library.size());
+        assertArrayEquals(new long[] {2, 3, 1}, library.ids(MusicLibrary.SortOrder.TITLE));
+        assertArrayEquals(new long[] {2, 3, 1}, library.ids(MusicLibrary.SortOrder.ALBUM));
+        assertEquals(Arrays.asList("Bravo", "Charlie", "Zulu"), titles(library.snapshot()));
+    }
+
+    @Test
+    public void deltaAddsNewSongsAndRemovesOthersAtOnce() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "B"), new Song(2, "D")));
+        assertTrue(library.applyDelta(columns(new Song(3, "A"), new Song(4, "C")), ids(2)));
+        assertArrayEquals(new long[] {3, 1, 4}, library.ids(MusicLibrary.SortOrder.TITLE));
+        assertFalse(library.applyDelta(SongColumns.EMPTY, Collections.emptySet()));
+    }
+
+    @Test
+    public void replaceAllDropsTheOldSongs() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "A"), new Song(2, "B")));
+        library.replaceAll(columns(new Song(3, "C")));
+        assertEquals(1, library.size());
+        assertFalse(library.contains(1));
+        assertArrayEquals(new long[] {3}, library.ids(MusicLibrary.SortOrder.TITLE));
+    }
+
+    @Test
+    public void snapshotsAreCopiesInTheRequestedOrder() {
+        MusicLibrary library = new MusicLibrary();
+        library.append(columns(new Song(1, "C"), new Song(2, "A"), new Song(3, "B")));
+        SongColumns page = library.snapshot(MusicLibrary.SortOrder.TITLE, 1, 10);
+        assertEquals(Arrays.asList("B", "C"), titles(page));
+        SongColumns chosen = library.snapshotOf(new long[] {1, 9, 2});
+        assertEquals(2, chosen.size());
+        assertEquals(1, chosen.id(0));
+        assertEquals(2, chosen.id(1));
+        // Later changes do not show through
+        library.applyDelta(columns(new Song(1, "Changed")), ids(2));
+        assertEquals(Arrays.asList("B", "C"), titles(page));
+        assertEquals(Arrays.asList("C", "A"), titles(chosen));
+    }
+
+    @Test
+    public void matchesAReferenceUnderRandomChanges() {
+        Random random = new Random(42);
+        MusicLibrary library = new MusicLibrary();
+        Map<Long, Song> reference = new HashMap<>();
+        // Long titles, so that replaced ones pile up and get compacted
+        String padding = new String(new char[80]).replace('\0', 'x');
+        library.ids(MusicLibrary.SortOrder.ALBUM);
+        for (int round = 0; round < 2000; round++) {
+            List<Song> upserts = new ArrayList<>();
+            for (int i = random.nextInt(8); i > 0; i--) {
+                long id = 1 + random.nextInt(500);
+                int album = random.nextInt(30);
+                upserts.add(new Song(id, String.format("t%05d", random.nextInt(100_000)) + padding,
+                        String.format("al%03d", album), album, random.nextInt(20)));
+            }
+            Set<String> removed = new HashSet<>();
+            for (int i = random.nextInt(4); i > 0; i--) {
+                removed.add(String.valueOf(1 + random.nextInt(500)));
+            }
+            if (round % 10 == 0) {
+                library.append(columns(upserts.toArray(new Song[0])));
+                for (Song song : upserts) {
+                    reference.putIfAbsent(song.id, song);
+                }
+            } else {
+                Map<Long, Song> latest = new HashMap<>();
+                for (Song song : upserts) {
+                    latest.put(song.id, song);
+                }
+                library.applyDelta(columns(latest.values().toArray(new Song[0])), removed);
+                // Removals are applied first, so an id both removed and changed stays
+                for (String id : removed) {
+                    reference.remove(Long.parseLong(id));
+                }
+                reference.putAll(latest);
+            }
+            assertEquals(reference.size(), library.size());
+            if (round % 50 == 0 || round == 1999) {
+                checkOrders(library, reference);
+            }
+        }
+    }
+
+    private static void checkOrders(MusicLibrary library, Map<Long, Song> reference) {
+        List<Song> byTitle = new ArrayList<>(reference.values());
+        Comparator<Song> titleOrder = Comparator.<Song, String>comparing(song -> song.title)
+                .thenComparingLong(song -> song.id);
+        byTitle.sort(titleOrder);
+        List<Song> byAlbum = new ArrayList<>(reference.values());
+        byAlbum.sort(Comparator.<Song, String>comparing(song -> song.album)
+                .thenComparingInt(song -> song.track > 0 ? song.track : Integer.MAX_VALUE)
+                .thenComparing(titleOrder));
+        long[] titleIds = library.ids(MusicLibrary.SortOrder.TITLE);
+        long[] albumIds = library.ids(MusicLibrary.SortOrder.ALBUM);
+        SongColumns snapshot = library.snapshot();
+        for (int i = 0; i < byTitle.size(); i++) {
+            Song song = byTitle.get(i);
+            assertEquals(song.id, titleIds[i]);
+            assertEquals(song.title, snapshot.title(i));
+            assertEquals(song.album, snapshot.album(i));
+            assertEquals(song.track, snapshot.track(i));
+            assertEquals(i, library.indexOf(song.id));
+            assertEquals(song.albumId, library.albumIdOf(song.id));
+            assertEquals(byAlbum.get(i).id, albumIds[i]);
+        }
+    }
+}
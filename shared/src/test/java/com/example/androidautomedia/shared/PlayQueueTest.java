@@ -0,0 +1,279 @@
+package com.example.androidautomedia.shared;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayQueueTest {
+
+    private static PlayQueue queueOf(int count, int start) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = 100 + i;
+        }
+        PlayQueue queue = new PlayQueue();
+        queue.replace(ids, count, start);
+        return queue;
+    }
+
+    @Test
+    public void emptyQueueHasNoCurrentEntry() {
+        PlayQueue queue = new PlayQueue();
+        assertEquals(-1, queue.currentPosition());
+        assertEquals(-1, queue.currentMediaId());
+        assertEquals(-1, queue.peekNext(true));
+        assertEquals(-1, queue.moveToNext(true));
+        assertEquals(-1, queue.moveToPrevious(true));
+    }
+
+    @Test
+    public void stopsAtTheEndWithoutWrap() {
+        PlayQueue queue = queueOf(3, 1);
+        assertEquals(2, queue.peekNext(false));
+        assertEquals(2, queue.moveToNext(false));
+        assertEquals(-1, queue.peekNext(false));
+        assertEquals(-1, queue.moveToNext(false));
+        assertEquals(2, queue.currentPosition());
+    }
+
+    @Test
+    public void wrapsAroundBothWays() {
+        PlayQueue queue = queueOf(3, 2);
+        assertEquals(0, queue.peekNext(true));
+        assertEquals(0, queue.moveToNext(true));
+        assertEquals(-1, queue.moveToPrevious(false));
+        assertEquals(2, queue.moveToPrevious(true));
+        assertEquals(102, queue.currentMediaId());
+    }
+
+    @Test
+    public void insertBeforeCurrentKeepsCurrentEntry() {
+        PlayQueue queue = queueOf(3, 1);
+        queue.insert(0, 200);
+        assertEquals(4, queue.size());
+        assertEquals(2, queue.currentPosition());
+        assertEquals(101, queue.currentMediaId());
+        assertEquals(200, queue.mediaIdAt(0));
+    }
+
+    @Test
+    public void insertIntoEmptyQueueBecomesCurrent() {
+        PlayQueue queue = new PlayQueue();
+        queue.add(200);
+        assertEquals(0, queue.currentPosition());
+        assertEquals(200, queue.currentMediaId());
+    }
+
+    @Test
+    public void removingCurrentEntryMakesTheNextOneCurrent() {
+        PlayQueue queue = queueOf(3, 1);
+        assertTrue(queue.remove(101));
+        assertEquals(102, queue.currentMediaId());
+        assertTrue(queue.remove(102));
+        assertEquals(100, queue.currentMediaId());
+        assertFalse(queue.remove(102));
+        assertTrue(queue.remove(100));
+        assertEquals(-1, queue.currentPosition());
+    }
+
+    @Test
+    public void removeAllKeepsOrderAndCurrentEntry() {
+        PlayQueue queue = queueOf(5, 3);
+        Set<Long> removed = new HashSet<>();
+        removed.add(100L);
+        removed.add(102L);
+        assertTrue(queue.removeAll(removed));
+        assertEquals(3, queue.size());
+        assertEquals(101, queue.mediaIdAt(0));
+        assertEquals(103, queue.mediaIdAt(1));
+        assertEquals(104, queue.mediaIdAt(2));
+        assertEquals(103, queue.currentMediaId());
+        assertFalse(queue.removeAll(Collections.singleton(999L)));
+    }
+
+    @Test
+    public void queueIdsSurviveEdits() {
+        PlayQueue queue = queueOf(3, 0);
+        long queueId = queue.queueIdAt(2);
+        queue.insert(0, 200);
+        queue.remove(100);
+        assertTrue(queue.skipTo(queueId));
+        assertEquals(102, queue.currentMediaId());
+        assertFalse(queue.skipTo(-5));
+    }
+
+    @Test
+    public void shufflePlaysEveryEntryOncePerPass() {
+        PlayQueue queue = queueOf(50, 7);
+        queue.setShuffled(true);
+        Set<Integer> played = new HashSet<>();
+        played.add(queue.currentPosition());
+        for (int i = 1; i < 50; i++) {
+            assertTrue(played.add(queue.moveToNext(true)));
+        }
+        for (int pass = 1; pass < 3; pass++) {
+            played.clear();
+            for (int i = 0; i < 50; i++) {
+                assertTrue(played.add(queue.moveToNext(true)));
+            }
+        }
+    }
+
+    @Test
+    public void shuffleStopsAfterOnePassWithoutWrap() {
+        PlayQueue queue = queueOf(10, 0);
+        queue.setShuffled(true);
+        for (int i = 1; i < 10; i++) {
+            assertTrue(queue.moveToNext(false) >= 0);
+        }
+        assertEquals(-1, queue.peekNext(false));
+        assertEquals(-1, queue.moveToNext(false));
+    }
+
+    @Test
+    public void peekAgreesWithMoveWhenShuffled() {
+        PlayQueue queue = queueOf(30, 0);
+        queue.setShuffled(true);
+        for (int i = 0; i < 100; i++) {
+            int next = queue.peekNext(true);
+            assertEquals(next, queue.peekNext(true));
+            assertEquals(next, queue.moveToNext(true));
+        }
+    }
+
+    @Test
+    public void peekAtTheEndOfAPassKeepsHistory() {
+        PlayQueue queue = queueOf(10, 0);
+        queue.setShuffled(true);
+        for (int i = 1; i < 10; i++) {
+            queue.moveToNext(true);
+        }
+        int last = queue.currentPosition();
+        queue.moveToPrevious(true);
+        int beforeLast = queue.currentPosition();
+        queue.moveToNext(true);
+        assertEquals(last, queue.currentPosition());
+
+        assertTrue(queue.peekNext(true) >= 0);
+        assertEquals(beforeLast, queue.moveToPrevious(true));
+        assertEquals(last, queue.moveToNext(true));
+    }
+
+    @Test
+    public void newPassDoesNotStartWithTheSongThatEnded() {
+        for (int run = 0; run < 200; run++) {
+            PlayQueue queue = queueOf(4, 0);
+            queue.setShuffled(true);
+            for (int i = 1; i < 4; i++) {
+                queue.moveToNext(true);
+            }
+            int last = queue.currentPosition();
+            assertTrue(queue.moveToNext(true) != last);
+        }
+    }
+
+    @Test
+    public void backAndForwardRetracesTheShuffleOrder() {
+        PlayQueue queue = queueOf(20, 0);
+        queue.setShuffled(true);
+        int[] played = new int[10];
+        played[0] = queue.currentPosition();
+        for (int i = 1; i < 10; i++) {
+            played[i] = queue.moveToNext(true);
+        }
+        for (int i = 8; i >= 0; i--) {
+            assertEquals(played[i], queue.moveToPrevious(true));
+        }
+        assertEquals(-1, queue.moveToPrevious(true));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(played[i], queue.peekNext(true));
+            assertEquals(played[i], queue.moveToNext(true));
+        }
+    }
+
+    @Test
+    public void editWhileShuffledRestartsFromTheCurrentEntry() {
+        PlayQueue queue = queueOf(10, 4);
+        queue.setShuffled(true);
+        queue.moveToNext(true);
+        long currentId = queue.currentMediaId();
+        queue.insert(0, 200);
+        assertEquals(currentId, queue.currentMediaId());
+        assertEquals(-1, queue.moveToPrevious(true));
+        Set<Long> played = new HashSet<>();
+        played.add(currentId);
+        for (int i = 1; i < 11; i++) {
+            queue.moveToNext(false);
+            assertTrue(played.add(queue.currentMediaId()));
+        }
+        assertEquals(-1, queue.moveToNext(false));
+    }
+
+    @Test
+    public void skipToWhileShuffledKeepsThePermutation() {
+        PlayQueue queue = queueOf(20, 0);
+        queue.setShuffled(true);
+        int[] played = new int[5];
+        played[0] = queue.currentPosition();
+        for (int i = 1; i < 5; i++) {
+            played[i] = queue.moveToNext(true);
+        }
+        Set<Integer> seen = new HashSet<>();
+        for (int position : played) {
+            seen.add(position);
+        }
+        int chosen = 0;
+        while (seen.contains(chosen)) {
+            chosen++;
+        }
+        assertTrue(queue.skipTo(queue.queueIdAt(chosen)));
+        assertEquals(chosen, queue.currentPosition());
+        // Back through the chosen entry to what played before it
+        for (int i = 4; i >= 0; i--) {
+            assertEquals(played[i], queue.moveToPrevious(true));
+        }
+        for (int i = 1; i < 5; i++) {
+            queue.moveToNext(false);
+        }
+        assertEquals(chosen, queue.moveToNext(false));
+        // The rest of the pass is the entries not played yet, each once
+        seen.add(chosen);
+        for (int i = 6; i < 20; i++) {
+            assertTrue(seen.add(queue.moveToNext(false)));
+        }
+        assertEquals(-1, queue.moveToNext(false));
+    }
+
+    @Test
+    public void skipToAPlayedEntryWhileShuffledStepsThroughHistory() {
+        PlayQueue queue = queueOf(10, 0);
+        queue.setShuffled(true);
+        int[] played = new int[4];
+        played[0] = queue.currentPosition();
+        for (int i = 1; i < 4; i++) {
+            played[i] = queue.moveToNext(true);
+        }
+        assertTrue(queue.skipTo(queue.queueIdAt(played[1])));
+        assertEquals(played[0], queue.moveToPrevious(true));
+        assertEquals(played[1], queue.moveToNext(true));
+        assertEquals(played[2], queue.moveToNext(true));
+        assertEquals(played[3], queue.moveToNext(true));
+    }
+
+    @Test
+    public void turningShuffleOffContinuesInQueueOrder() {
+        PlayQueue queue = queueOf(10, 0);
+        queue.setShuffled(true);
+        int position = queue.moveToNext(true);
+        queue.setShuffled(false);
+        assertFalse(queue.isShuffled());
+        assertEquals(position, queue.currentPosition());
+        assertEquals(position + 1 < 10 ? position + 1 : 0, queue.peekNext(true));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.androidautomedia.shared;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SearchIndexTest {
+
+    /** Songs 1, 2, ... with the given title, artist and album each, in title order. */
+    private static SearchIndex index(String[]... songs) {
+        SongColumns.Builder builder = new SongColumns.Builder(songs.length);
+        for (int i = 0; i < songs.length; i++) {
+            builder.add(i + 1, songs[i][0], songs[i][1], songs[i][2], 0, null, null, 0, 0, 0, 0, 0, null);
+        }
+        return SearchIndex.build(builder.build());
+    }
+
+    private static final SearchIndex INDEX = index(
+            new String[] {"Beat It", "Michael Jackson", "Thriller"},
+            new String[] {"Billie Jean", "Michael Jackson", "Thriller"},
+            new String[] {"Crazy in Love", "Beyonc\u00e9", "Dangerously in Love"},
+            new String[] {"Don't Stop Me Now", "Queen", "Jazz"},
+            new String[] {"Jackson", "Johnny Cash", "Johnny Cash with His Hot and Blue Guitar"},
+            new String[] {"Stand by Me", "Ben E. King", "Don't Play That Song!"},
+            new String[] {"Stand by Me", "Oasis", "Be Here Now"},
+            new String[] {"Thriller", "Michael Jackson", "Thriller"});
+
+    private static long[] search(String query) {
+        return INDEX.searchIds(query, null, null, null, 100);
+    }
+
+    @Test
+    public void emptyQueryMatchesNothing() {
+        assertArrayEquals(new long[0], search(null));
+        assertArrayEquals(new long[0], search(" - "));
+        assertArrayEquals(new long[0], SearchIndex.EMPTY.searchIds("beat", null, null, null, 100));
+    }
+
+    @Test
+    public void findsWholeTokens() {
+        assertArrayEquals(new long[] {2}, search("jean"));
+        assertArrayEquals(new long[] {4}, search("queen"));
+    }
+
+    @Test
+    public void lastTokenMatchesAsPrefix() {
+        assertArrayEquals(new long[] {2}, search("billie je"));
+        assertArrayEquals(new long[] {1}, search("it bea"));
+        // Only the last token may be cut short
+        assertArrayEquals(new long[0], search("bea it"));
+    }
+
+    @Test
+    public void everyTokenMustMatch() {
+        assertArrayEquals(new long[] {3}, search("crazy love"));
+        assertArrayEquals(new long[0], search("crazy queen"));
+    }
+
+    @Test
+    public void tokensMayMatchDifferentFields() {
+        assertArrayEquals(new long[] {1}, search("beat jackson thriller"));
+    }
+
+    @Test
+    public void foldsCaseAccentsAndApostrophes() {
+        assertArrayEquals(new long[] {3}, search("BEYONCE"));
+        assertArrayEquals(new long[] {4}, search("dont stop"));
+        assertArrayEquals(new long[] {4}, search("Don\u2019t Stop"));
+        assertEquals("dont stop me", SearchIndex.fold("  Don't-Stop  (Me)  "));
+    }
+
+    @Test
+    public void fieldsOnlyMatchTheirOwnField() {
+        assertArrayEquals(new long[] {5}, INDEX.searchIds(null, "jackson", null, null, 100));
+        assertArrayEquals(new long[] {1, 2, 8}, INDEX.searchIds(null, null, "jackson", null, 100));
+        assertArrayEquals(new long[] {8}, INDEX.searchIds(null, "thriller", "michael", "thriller", 100));
+    }
+
+    @Test
+    public void ranksTitleMatchesBeforeArtistAndAlbumMatches() {
+        // "Jackson" the title first, then Michael Jackson's songs in title order
+        assertArrayEquals(new long[] {5, 1, 2, 8}, search("jackson"));
+        // "Thriller" the title before the album's other songs
+        assertArrayEquals(new long[] {8, 1, 2}, search("thriller"));
+    }
+
+    @Test
+    public void ranksWholeTokensBeforePrefixes() {
+        SearchIndex index = index(
+                new String[] {"Love Story", "Taylor Swift", "Fearless"},
+                new String[] {"Lovely", "Billie Eilish", "Lovely"},
+                new String[] {"Loveless", "Someone", "Lovelessness"});
+        assertArrayEquals(new long[] {1, 2, 3}, index.searchIds("love", null, null, null, 100));
+    }
+
+    @Test
+    public void limitKeepsTheBestMatches() {
+        assertArrayEquals(new long[] {5, 1}, INDEX.searchIds("jackson", null, null, null, 2));
+    }
+
+    @Test
+    public void splitsTitleByArtistQueries() {
+        assertArrayEquals(new long[] {6}, search("stand by me by ben e king"));
+        assertArrayEquals(new long[] {7}, search("Stand By Me by Oasis"));
+        assertArrayEquals(new long[] {1}, search("beat it by michael jackson"));
+    }
+
+    @Test
+    public void byQueriesFallBackToTokenSearch() {
+        // No title "stand" by artist "me": all tokens anywhere instead
+        assertArrayEquals(new long[] {6, 7}, search("stand by me"));
+        assertArrayEquals(new long[0], search("beat it by queen"));
+    }
+
+    @Test
+    public void extrasTakeNoByQuerySplitting() {
+        assertArrayEquals(new long[0], INDEX.searchIds(null, "stand by me by oasis", null, null, 100));
+    }
+}